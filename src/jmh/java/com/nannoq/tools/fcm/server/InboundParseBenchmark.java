@@ -0,0 +1,156 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Anders Mikkelsen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.nannoq.tools.fcm.server;
+
+import com.nannoq.tools.fcm.server.messageutils.CcsStanzaHeader;
+import com.nannoq.tools.fcm.server.messageutils.FcmPacketExtension;
+import io.vertx.core.json.JsonObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.provider.PacketExtensionProvider;
+import org.jivesoftware.smack.provider.ProviderManager;
+import org.jivesoftware.smack.util.PacketParserUtils;
+import org.xmlpull.mxp1.MXParser;
+import org.xmlpull.v1.XmlPullParser;
+
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import static com.nannoq.tools.fcm.server.XMPPPacketListener.GCM_ELEMENT_NAME;
+import static com.nannoq.tools.fcm.server.XMPPPacketListener.GCM_NAMESPACE;
+
+/**
+ * Measures the inbound parsing done on the Smack reader thread for each stanza type: the Smack parse of the message
+ * stanza with the FCM extension provider, and the header parse processPacket runs on its json before dispatching.
+ * The JsonObject parse the header parse replaced is kept as a baseline. The dispatched handlers are left out, as
+ * they need a deployed server.
+ *
+ * Run with: mvn -Pjmh test-compile exec:exec
+ *
+ * @author Anders Mikkelsen
+ * @version 31.03.2016
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InboundParseBenchmark {
+    @Param({"ack", "nack", "receipt", "data"})
+    private String stanzaType;
+
+    private String json;
+    private String xml;
+    private XmlPullParser parser;
+
+    @Setup
+    public void setup() throws Exception {
+        ProviderManager.getInstance().addExtensionProvider(GCM_ELEMENT_NAME, GCM_NAMESPACE,
+                (PacketExtensionProvider) parser -> new FcmPacketExtension(parser.nextText()));
+
+        json = createJson(stanzaType).encode();
+        xml = "<message id=\"k3Jx7-12\">" + new FcmPacketExtension(json).toXML() + "</message>";
+
+        // Smack keeps one parser per connection
+        parser = new MXParser();
+        parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+    }
+
+    private static JsonObject createJson(String stanzaType) {
+        String messageId = "a6c1b9f2-5a0e-4f57-8f8c-2b3b0ad2a0f1";
+        String from = "dev-registration-id";
+
+        switch (stanzaType) {
+            case "ack":
+                return new JsonObject()
+                        .put("message_type", "ack")
+                        .put("from", from)
+                        .put("message_id", messageId);
+            case "nack":
+                return new JsonObject()
+                        .put("message_type", "nack")
+                        .put("from", from)
+                        .put("message_id", messageId)
+                        .put("error", "BAD_REGISTRATION")
+                        .put("error_description", "Invalid token on 'to' field: " + from);
+            case "receipt":
+                return new JsonObject()
+                        .put("message_type", "receipt")
+                        .put("message_id", "dr2:" + messageId)
+                        .put("from", "gcm.googleapis.com")
+                        .put("category", "com.nannoq.benchmark")
+                        .put("data", new JsonObject()
+                                .put("message_status", "MESSAGE_SENT_TO_DEVICE")
+                                .put("original_message_id", messageId)
+                                .put("device_registration_id", from)
+                                .put("message_sent_timestamp", "1430277821658"));
+            default:
+                return new JsonObject()
+                        .put("from", from)
+                        .put("category", "com.nannoq.benchmark")
+                        .put("message_id", messageId)
+                        .put("data", new JsonObject()
+                                .put("action", "Register Device")
+                                .put("deviceName", "Tom's <b>phone</b>"));
+        }
+    }
+
+    @Benchmark
+    public String smackParse() throws Exception {
+        parser.setInput(new StringReader(xml));
+        parser.next();
+
+        Message message = (Message) PacketParserUtils.parseMessage(parser);
+
+        return ((FcmPacketExtension) message.getExtension(GCM_NAMESPACE)).getJson();
+    }
+
+    @Benchmark
+    public String headerParse() {
+        CcsStanzaHeader header = CcsStanzaHeader.parse(json);
+
+        return header.getMessageType() == null ? header.getMessageId() : header.getMessageType();
+    }
+
+    @Benchmark
+    public String jsonObjectParse() {
+        JsonObject message = new JsonObject(json);
+
+        return message.getString("message_type") == null ?
+                message.getString("message_id") : message.getString("message_type");
+    }
+}
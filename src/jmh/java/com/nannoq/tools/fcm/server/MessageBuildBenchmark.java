@@ -0,0 +1,120 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Anders Mikkelsen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.nannoq.tools.fcm.server;
+
+import com.nannoq.tools.fcm.server.messageutils.DefaultFcmNotificationImpl;
+import com.nannoq.tools.fcm.server.messageutils.FcmNotification;
+import com.nannoq.tools.fcm.server.messageutils.FcmNotificationTemplate;
+import com.nannoq.tools.fcm.server.messageutils.FcmPacketExtension;
+import com.nannoq.tools.fcm.server.messageutils.MessageUtils;
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the outbound hot path, from building a message to its wire json and XML stanza. Run with the gc profiler
+ * for allocation rates per operation.
+ *
+ * Run with: mvn -Pjmh test-compile exec:exec
+ *
+ * @author Anders Mikkelsen
+ * @version 31.03.2016
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageBuildBenchmark {
+    private static final String PACKAGE_NAME = "com.nannoq.benchmark";
+    private static final String TO = "dev-registration-id";
+    private static final String MESSAGE_ID = "a6c1b9f2-5a0e-4f57-8f8c-2b3b0ad2a0f1";
+
+    private FcmNotification notification;
+    private FcmNotificationTemplate template;
+    private JsonObject payload;
+    private String json;
+
+    @Setup
+    public void setup() {
+        notification = new DefaultFcmNotificationImpl(new JsonObject()
+                .put("packageNameExtension", "devApp")
+                .put("priority", "high")
+                .put("data", new JsonObject()
+                        .put("episodeId", "1234")
+                        .put("showId", "42"))
+                .put("notification", new JsonObject()
+                        .put("title", "New episode")
+                        .put("body", "Tom & Jerry's <b>new</b> episode is out!")));
+        template = MessageSender.createNotificationTemplate(PACKAGE_NAME, notification, false);
+        payload = new JsonObject()
+                .put("episodeId", "1234")
+                .put("showId", "42");
+        json = template.render(TO, MESSAGE_ID);
+    }
+
+    @Benchmark
+    public String createCustomNotification() {
+        return Json.encode(MessageSender.createCustomNotification(PACKAGE_NAME, TO, notification));
+    }
+
+    @Benchmark
+    public String renderNotificationTemplate() {
+        return template.render(TO, MESSAGE_ID);
+    }
+
+    @Benchmark
+    public String createJsonMessage() {
+        return MessageUtils.createJsonMessage(TO, "Update", payload.copy(), null, PACKAGE_NAME).encode();
+    }
+
+    @Benchmark
+    public String encodeJsonMessage() {
+        return MessageUtils.encodeJsonMessage(TO, "Update", MESSAGE_ID, payload.copy(), null, PACKAGE_NAME);
+    }
+
+    @Benchmark
+    public String extensionToXml() {
+        return new FcmPacketExtension(json).toXML();
+    }
+
+    @Benchmark
+    public String packetToXml() {
+        return new FcmPacketExtension(json).toPacket().toXML();
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Anders Mikkelsen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.nannoq.tools.fcm.server;
+
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Compares the logging cost of one message round trip, send and ACK, between the previous info logging and the
+ * guarded, sampled debug logging. Loggers have no handlers, so only the cost paid by the sending threads is measured.
+ * Multiply by the message rate for CPU time per second, e.g. 10k msg/s.
+ *
+ * Run with: mvn -Pjmh test-compile exec:exec
+ *
+ * @author Anders Mikkelsen
+ * @version 31.03.2016
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageLogBenchmark {
+    private static final String INFO_LOGGER = "MessageLogBenchmarkInfo";
+    private static final String DEBUG_LOGGER = "MessageLogBenchmarkDebug";
+
+    private Logger infoLogger;
+    private Logger debugLogger;
+    private MessageLog messageLog;
+    private MessageLog sampledMessageLog;
+    private String[] messageIds;
+    private String stanza;
+    private int next;
+
+    @Setup
+    public void setup() {
+        infoLogger = createLogger(INFO_LOGGER, Level.INFO);
+        debugLogger = createLogger(DEBUG_LOGGER, Level.FINE);
+        messageLog = new MessageLog(1.0);
+        sampledMessageLog = new MessageLog(0.01);
+        messageIds = new String[1024];
+
+        for (int i = 0; i < messageIds.length; i++) {
+            messageIds[i] = UUID.randomUUID().toString();
+        }
+
+        stanza = "<message id=\"k3Jx7-12\"><gcm xmlns=\"google:mobile:data\">{&quot;to&quot;:&quot;" +
+                "dev-registration-id&quot;,&quot;message_id&quot;:&quot;" + messageIds[0] + "&quot;," +
+                "&quot;notification&quot;:{&quot;title&quot;:&quot;New episode&quot;,&quot;body&quot;:" +
+                "&quot;Tom &amp; Jerry&apos;s new episode is out!&quot;},&quot;time_to_live&quot;:86400}" +
+                "</gcm></message>";
+    }
+
+    private static Logger createLogger(String name, Level level) {
+        java.util.logging.Logger julLogger = java.util.logging.Logger.getLogger(name);
+        julLogger.setUseParentHandlers(false);
+        julLogger.setLevel(level);
+
+        return LoggerFactory.getLogger(name);
+    }
+
+    @Benchmark
+    public void previousInfoLogging(Blackhole blackhole) {
+        String messageId = nextMessageId();
+
+        infoLogger.info("Sending Extension to GCM: " + messageId);
+        infoLogger.info("Sent: " + stanza.replaceAll("&quot;", "'"));
+        infoLogger.info("Packet received..");
+        infoLogger.info("Received a message of type: " + "ack");
+        infoLogger.info("Received ACK ...");
+        infoLogger.info("CCS reports ACK for: " + messageId + " from: " + "dev-registration-id");
+        infoLogger.info("Message sent successfully, purged from redis...");
+
+        blackhole.consume(messageId);
+    }
+
+    @Benchmark
+    public void guardedDebugDisabled(Blackhole blackhole) {
+        String messageId = nextMessageId();
+
+        messageLog.debug(infoLogger, "send", messageId, "attempt", 1, "json", stanza);
+        messageLog.debug(infoLogger, "written", messageId);
+        messageLog.debug(infoLogger, "received", messageId, "type", "ack", "json", stanza);
+        messageLog.debug(infoLogger, "ack", messageId, "from", "dev-registration-id", "canonical", false);
+        messageLog.debug(infoLogger, "purged", messageId);
+
+        blackhole.consume(messageId);
+    }
+
+    @Benchmark
+    public void sampledDebugEnabled(Blackhole blackhole) {
+        String messageId = nextMessageId();
+
+        sampledMessageLog.debug(debugLogger, "send", messageId, "attempt", 1, "json", stanza);
+        sampledMessageLog.debug(debugLogger, "written", messageId);
+        sampledMessageLog.debug(debugLogger, "received", messageId, "type", "ack", "json", stanza);
+        sampledMessageLog.debug(debugLogger, "ack", messageId, "from", "dev-registration-id", "canonical", false);
+        sampledMessageLog.debug(debugLogger, "purged", messageId);
+
+        blackhole.consume(messageId);
+    }
+
+    private String nextMessageId() {
+        return messageIds[next++ & (messageIds.length - 1)];
+    }
+}
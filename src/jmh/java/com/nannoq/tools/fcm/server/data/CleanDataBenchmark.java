@@ -0,0 +1,87 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Anders Mikkelsen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.nannoq.tools.fcm.server.data;
+
+import com.nannoq.tools.fcm.server.FcmServer;
+import com.nannoq.tools.fcm.server.MessageSender;
+import com.nannoq.tools.fcm.server.messageutils.CcsMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the sanitizing of upstream actions, for a known action and for input that needs cleaning.
+ *
+ * Run with: mvn -Pjmh test-compile exec:exec
+ *
+ * @author Anders Mikkelsen
+ * @version 31.03.2016
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CleanDataBenchmark {
+    @Param({"Register Device", "Custom Action", "<b>Custom</b> & <script>alert(1)</script>"})
+    private String input;
+
+    private final DataMessageHandler handler = new DataMessageHandler() {
+        @Override
+        public void handleIncomingDataMessage(CcsMessage ccsMessage) {
+        }
+
+        @Override
+        public RegistrationService getRegistrationService() {
+            return null;
+        }
+
+        @Override
+        public DataMessageHandler setServer(FcmServer server) {
+            return this;
+        }
+
+        @Override
+        public DataMessageHandler setSender(MessageSender sender) {
+            return this;
+        }
+    };
+
+    @Benchmark
+    public String cleanData() {
+        return handler.cleanData(input);
+    }
+}
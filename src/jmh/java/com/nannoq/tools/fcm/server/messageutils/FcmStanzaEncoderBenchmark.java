@@ -0,0 +1,90 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Anders Mikkelsen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.nannoq.tools.fcm.server.messageutils;
+
+import org.jivesoftware.smack.util.StringUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.nannoq.tools.fcm.server.XMPPPacketListener.GCM_ELEMENT_NAME;
+import static com.nannoq.tools.fcm.server.XMPPPacketListener.GCM_NAMESPACE;
+
+/**
+ * Compares the single pass stanza encoder with the previous String.format and escapeForXML path.
+ *
+ * Run with: mvn -Pjmh test-compile exec:exec
+ *
+ * @author Anders Mikkelsen
+ * @version 31.03.2016
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FcmStanzaEncoderBenchmark {
+    @Param({"128", "4096"})
+    private int payloadSize;
+
+    private String json;
+
+    @Setup
+    public void setup() {
+        StringBuilder body = new StringBuilder();
+
+        while (body.length() < payloadSize) {
+            body.append("Tom & Jerry's <b>new</b> episode is out! ");
+        }
+
+        json = "{\"to\":\"dev-registration-id\",\"message_id\":\"a6c1b9f2-5a0e-4f57-8f8c-2b3b0ad2a0f1\"," +
+                "\"notification\":{\"title\":\"New episode\",\"body\":\"" +
+                body.substring(0, payloadSize).replace("\"", "\\\"") + "\"},\"time_to_live\":86400}";
+    }
+
+    @Benchmark
+    public String stringFormat() {
+        return String.format("<%s xmlns=\"%s\">%s</%s>",
+                GCM_ELEMENT_NAME, GCM_NAMESPACE,
+                StringUtils.escapeForXML(json), GCM_ELEMENT_NAME);
+    }
+
+    @Benchmark
+    public String stanzaEncoder() {
+        return FcmStanzaEncoder.encode(json);
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Anders Mikkelsen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.nannoq.tools.fcm.server;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class batches outbox writes issued concurrently, so a burst of sends costs one redis round trip per batch.
+ *
+ * @author Anders Mikkelsen
+ * @version 31.03.2016
+ */
+abstract class AbstractRedisOutbox implements MessageOutbox {
+    private static final int MAX_BATCH_SIZE = 64;
+
+    protected final Vertx vertx;
+
+    private List<PendingWrite> pendingWrites = new ArrayList<>();
+
+    AbstractRedisOutbox(Vertx vertx) {
+        this.vertx = vertx;
+    }
+
+    @Override
+    public void store(String messageId, String json, Handler<AsyncResult<Integer>> attemptHandler) {
+        boolean scheduleFlush;
+        List<PendingWrite> fullBatch = null;
+
+        synchronized (this) {
+            scheduleFlush = pendingWrites.isEmpty();
+            pendingWrites.add(new PendingWrite(messageId, json, attemptHandler));
+
+            if (pendingWrites.size() >= MAX_BATCH_SIZE) {
+                fullBatch = pendingWrites;
+                pendingWrites = new ArrayList<>();
+            }
+        }
+
+        if (fullBatch != null) {
+            write(fullBatch);
+        } else if (scheduleFlush) {
+            vertx.runOnContext(v -> flush());
+        }
+    }
+
+    private void flush() {
+        List<PendingWrite> batch;
+
+        synchronized (this) {
+            if (pendingWrites.isEmpty()) return;
+
+            batch = pendingWrites;
+            pendingWrites = new ArrayList<>();
+        }
+
+        write(batch);
+    }
+
+    protected abstract void write(List<PendingWrite> batch);
+
+    static class PendingWrite {
+        final String messageId;
+        final String json;
+        final Handler<AsyncResult<Integer>> attemptHandler;
+
+        private PendingWrite(String messageId, String json, Handler<AsyncResult<Integer>> attemptHandler) {
+            this.messageId = messageId;
+            this.json = json;
+            this.attemptHandler = attemptHandler;
+        }
+    }
+}
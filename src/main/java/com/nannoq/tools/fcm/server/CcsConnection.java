@@ -0,0 +1,160 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Anders Mikkelsen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.nannoq.tools.fcm.server;
+
+import io.vertx.core.json.JsonObject;
+import org.jivesoftware.smack.Connection;
+import org.jivesoftware.smack.packet.Packet;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class wraps a single CCS connection in the connection pool of the FcmServer, tracking draining state and the
+ * window of unacknowledged messages, as CCS only allows a limited amount of those per connection.
+ *
+ * @author Anders Mikkelsen
+ * @version 31.03.2016
+ */
+class CcsConnection {
+    private final int id;
+    private final Connection connection;
+    private final int windowSize;
+    // the time each message was written, by message id
+    private final Map<String, Long> inFlight = new ConcurrentHashMap<>();
+    private final AtomicInteger inFlightCount = new AtomicInteger();
+
+    private volatile boolean draining;
+
+    CcsConnection(int id, Connection connection, int windowSize) {
+        this.id = id;
+        this.connection = connection;
+        this.windowSize = windowSize;
+    }
+
+    int getId() {
+        return id;
+    }
+
+    Connection getConnection() {
+        return connection;
+    }
+
+    boolean isConnected() {
+        return connection.isConnected() && connection.isAuthenticated();
+    }
+
+    boolean isDraining() {
+        return draining;
+    }
+
+    void setDraining() {
+        draining = true;
+    }
+
+    int getPendingCount() {
+        return inFlightCount.get();
+    }
+
+    boolean hasCredit() {
+        return inFlightCount.get() < windowSize;
+    }
+
+    boolean acquire(String messageId) {
+        if (inFlightCount.incrementAndGet() > windowSize) {
+            inFlightCount.decrementAndGet();
+
+            return false;
+        }
+
+        if (inFlight.put(messageId, System.currentTimeMillis()) != null) {
+            inFlightCount.decrementAndGet();
+        }
+
+        return true;
+    }
+
+    boolean release(String messageId) {
+        if (messageId != null && inFlight.remove(messageId) != null) {
+            inFlightCount.decrementAndGet();
+
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Releases the messages written longer ago than the max age without an ACK or NACK, so a lost answer only holds
+     * its slot of the window until then instead of until the connection closes.
+     */
+    Set<String> releaseExpired(long maxAge) {
+        long writtenBefore = System.currentTimeMillis() - maxAge;
+        Set<String> expired = new HashSet<>();
+
+        inFlight.forEach((messageId, writtenAt) -> {
+            if (writtenAt < writtenBefore && inFlight.remove(messageId, writtenAt)) {
+                inFlightCount.decrementAndGet();
+                expired.add(messageId);
+            }
+        });
+
+        return expired;
+    }
+
+    Set<String> releaseAll() {
+        Set<String> messageIds = new HashSet<>(inFlight.keySet());
+        messageIds.forEach(this::release);
+
+        return messageIds;
+    }
+
+    void sendPacket(Packet packet) {
+        connection.sendPacket(packet);
+    }
+
+    void disconnect() {
+        if (connection.isConnected()) connection.disconnect();
+    }
+
+    JsonObject toJson() {
+        return new JsonObject()
+                .put("id", id)
+                .put("connected", isConnected())
+                .put("draining", draining)
+                .put("inFlight", inFlightCount.get())
+                .put("window", windowSize);
+    }
+
+    @Override
+    public String toString() {
+        return "CcsConnection{id=" + id + ", connected=" + isConnected() +
+                ", draining=" + draining + ", inFlight=" + inFlightCount.get() + "/" + windowSize + "}";
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Anders Mikkelsen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.nannoq.tools.fcm.server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class tracks the newest message waiting locally for each device and collapse key, from when it is stored in
+ * the outbox until it is written to a connection. Waiting messages are replaced rather than sent, as CCS would only
+ * keep the last of them for an offline device anyway. A message is claimed for sending by removing it, so a message
+ * can never be both replaced and sent.
+ *
+ * @author Anders Mikkelsen
+ * @version 31.03.2016
+ */
+class CollapseKeyCoalescer {
+    // registration tokens and topics cannot contain a line break
+    private static final char KEY_SEPARATOR = '\n';
+
+    private final Map<String, String> waiting = new ConcurrentHashMap<>();
+
+    /**
+     * @return the key of the message, or null when it has no recipient or collapse key and is never coalesced
+     */
+    static String keyOf(String to, String collapseKey) {
+        return to == null || collapseKey == null ? null : to + KEY_SEPARATOR + collapseKey;
+    }
+
+    /**
+     * @return the id of the waiting message the new message replaces, or null
+     */
+    String replace(String key, String messageId) {
+        return waiting.put(key, messageId);
+    }
+
+    /**
+     * Resent messages are older than any message already waiting for the same key, so they only wait when none is.
+     *
+     * @return the id of the waiting message the resent message is collapsed into, or null
+     */
+    String join(String key, String messageId) {
+        return waiting.putIfAbsent(key, messageId);
+    }
+
+    boolean isWaiting(String key, String messageId) {
+        return messageId.equals(waiting.get(key));
+    }
+
+    /**
+     * @return false when the message was replaced while waiting
+     */
+    boolean claim(String key, String messageId) {
+        return waiting.remove(key, messageId);
+    }
+
+    int getWaitingCount() {
+        return waiting.size();
+    }
+}
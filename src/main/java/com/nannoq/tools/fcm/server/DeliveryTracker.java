@@ -0,0 +1,142 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Anders Mikkelsen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.nannoq.tools.fcm.server;
+
+import com.nannoq.tools.fcm.server.messageutils.CcsStanzaHeader;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * This class correlates ACKs and NACKs from CCS with the senders waiting for them, by message id. As every message
+ * is tracked with the same timeout, deadlines are queued in the order they expire and evicted from the head by a
+ * single periodic sweep, instead of a timer per message. A deadline counts from when the message is first tracked,
+ * so resends and their backoff do not extend it.
+ *
+ * @author Anders Mikkelsen
+ * @version 31.03.2016
+ */
+class DeliveryTracker {
+    private static final Logger logger = LoggerFactory.getLogger(DeliveryTracker.class.getSimpleName());
+
+    static final long DEFAULT_TIMEOUT = 60000L;
+    private static final long SWEEP_INTERVAL = 1000L;
+
+    private final Vertx vertx;
+    private final long timeout;
+    private final Map<String, Handler<AsyncResult<JsonObject>>> pending = new ConcurrentHashMap<>();
+    private final Queue<Deadline> deadlines = new ConcurrentLinkedQueue<>();
+    private final long sweepTimer;
+
+    DeliveryTracker(Vertx vertx, long timeout) {
+        this.vertx = vertx;
+        this.timeout = timeout;
+        this.sweepTimer = vertx.setPeriodic(Math.min(SWEEP_INTERVAL, timeout), timerId -> evictExpired());
+    }
+
+    void track(String messageId, Handler<AsyncResult<JsonObject>> deliveryHandler) {
+        pending.put(messageId, deliveryHandler);
+        deadlines.add(new Deadline(messageId, System.currentTimeMillis() + timeout));
+    }
+
+    /**
+     * The ACK is only converted to json when a handler waits for it, as most messages are sent without one.
+     */
+    void acknowledged(String messageId, CcsStanzaHeader ack) {
+        Handler<AsyncResult<JsonObject>> deliveryHandler = pending.remove(messageId);
+
+        if (deliveryHandler != null) deliveryHandler.handle(Future.succeededFuture(ack.toJsonObject()));
+    }
+
+    void rejected(String messageId, Throwable cause) {
+        Handler<AsyncResult<JsonObject>> deliveryHandler = pending.remove(messageId);
+
+        if (deliveryHandler != null) deliveryHandler.handle(Future.failedFuture(cause));
+    }
+
+    /**
+     * The handler of a message collapsed into a newer one for the same device and collapse key waits for the answer
+     * to the newer message instead, and inherits the deadline of the newer message.
+     */
+    void collapsed(String messageId, String replacementId) {
+        Handler<AsyncResult<JsonObject>> deliveryHandler = pending.remove(messageId);
+
+        if (deliveryHandler != null) {
+            pending.merge(replacementId, deliveryHandler, (replacementHandler, collapsedHandler) -> result -> {
+                replacementHandler.handle(result);
+                collapsedHandler.handle(result);
+            });
+        }
+    }
+
+    int getPendingCount() {
+        return pending.size();
+    }
+
+    void close() {
+        vertx.cancelTimer(sweepTimer);
+        deadlines.clear();
+
+        pending.keySet().forEach(messageId ->
+                rejected(messageId, new IllegalStateException("Server stopped before delivery of: " + messageId)));
+    }
+
+    private void evictExpired() {
+        long now = System.currentTimeMillis();
+        Deadline deadline;
+
+        while ((deadline = deadlines.peek()) != null && deadline.expiresAt <= now) {
+            deadlines.poll();
+
+            if (pending.containsKey(deadline.messageId)) {
+                logger.info("Gave up waiting for delivery of: " + deadline.messageId);
+
+                rejected(deadline.messageId, new TimeoutException(
+                        "No ACK or NACK within " + timeout + " ms for: " + deadline.messageId));
+            }
+        }
+    }
+
+    private static class Deadline {
+        private final String messageId;
+        private final long expiresAt;
+
+        private Deadline(String messageId, long expiresAt) {
+            this.messageId = messageId;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
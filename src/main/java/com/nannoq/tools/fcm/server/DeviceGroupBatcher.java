@@ -0,0 +1,180 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Anders Mikkelsen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.nannoq.tools.fcm.server;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * This class accumulates device group membership operations per notification key over a short window and flushes
+ * them as one request carrying many registration ids. A failed batch is retried one id at a time, so every caller
+ * gets the result for its own registration id.
+ *
+ * @author Anders Mikkelsen
+ * @version 31.03.2016
+ */
+class DeviceGroupBatcher {
+    private static final Logger logger = LoggerFactory.getLogger(DeviceGroupBatcher.class.getSimpleName());
+
+    static final long DEFAULT_BATCH_WINDOW = 50L;
+
+    // fcm allows at most 20 members per notification key
+    static final int MAX_BATCH_SIZE = 20;
+
+    @FunctionalInterface
+    interface GroupOperationSender {
+        void send(String operation, String notificationKeyName, String key, List<String> registrationIds,
+                  Handler<AsyncResult<Boolean>> resultHandler);
+    }
+
+    private final Vertx vertx;
+    private final long batchWindow;
+    private final GroupOperationSender operationSender;
+    private final Map<BatchKey, Batch> batches = new HashMap<>();
+
+    DeviceGroupBatcher(Vertx vertx, long batchWindow, GroupOperationSender operationSender) {
+        this.vertx = vertx;
+        this.batchWindow = batchWindow;
+        this.operationSender = operationSender;
+    }
+
+    void add(String operation, String registrationId, String notificationKeyName, String key,
+             Handler<AsyncResult<Boolean>> resultHandler) {
+        BatchKey batchKey = new BatchKey(operation, notificationKeyName, key);
+        Batch fullBatch = null;
+        boolean scheduleFlush = false;
+
+        synchronized (batches) {
+            Batch batch = batches.get(batchKey);
+
+            if (batch == null) {
+                batch = new Batch();
+                batches.put(batchKey, batch);
+                scheduleFlush = true;
+            }
+
+            batch.add(registrationId, resultHandler);
+
+            if (batch.size() >= MAX_BATCH_SIZE) {
+                batches.remove(batchKey);
+                fullBatch = batch;
+            }
+        }
+
+        if (fullBatch != null) {
+            flush(batchKey, fullBatch);
+        } else if (scheduleFlush) {
+            vertx.setTimer(batchWindow, timerId -> flush(batchKey));
+        }
+    }
+
+    private void flush(BatchKey batchKey) {
+        Batch batch;
+
+        synchronized (batches) {
+            batch = batches.remove(batchKey);
+        }
+
+        // a full batch was already flushed before the window closed
+        if (batch != null) flush(batchKey, batch);
+    }
+
+    private void flush(BatchKey batchKey, Batch batch) {
+        List<String> registrationIds = new ArrayList<>(batch.handlers.keySet());
+
+        logger.info("Flushing " + batchKey.operation + " of " + registrationIds.size() + " ids for: " +
+                batchKey.notificationKeyName);
+
+        operationSender.send(batchKey.operation, batchKey.notificationKeyName, batchKey.key, registrationIds,
+                batchResult -> {
+            if ((batchResult.failed() || !batchResult.result()) && registrationIds.size() > 1) {
+                logger.error("Batched " + batchKey.operation + " failed for: " + batchKey.notificationKeyName +
+                        ", retrying ids individually...");
+
+                batch.handlers.forEach((registrationId, handlers) -> operationSender.send(batchKey.operation,
+                        batchKey.notificationKeyName, batchKey.key, Collections.singletonList(registrationId),
+                        singleResult -> handlers.forEach(handler -> handler.handle(singleResult))));
+            } else {
+                batch.handlers.values().forEach(handlers -> handlers.forEach(handler -> handler.handle(
+                        batchResult.succeeded() ? Future.succeededFuture(batchResult.result()) :
+                                Future.failedFuture(batchResult.cause()))));
+            }
+        });
+    }
+
+    private static class Batch {
+        private final Map<String, List<Handler<AsyncResult<Boolean>>>> handlers = new LinkedHashMap<>();
+
+        private void add(String registrationId, Handler<AsyncResult<Boolean>> resultHandler) {
+            handlers.computeIfAbsent(registrationId, id -> new ArrayList<>()).add(resultHandler);
+        }
+
+        private int size() {
+            return handlers.size();
+        }
+    }
+
+    private static class BatchKey {
+        private final String operation;
+        private final String notificationKeyName;
+        private final String key;
+
+        private BatchKey(String operation, String notificationKeyName, String key) {
+            this.operation = operation;
+            this.notificationKeyName = notificationKeyName;
+            this.key = key;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            BatchKey batchKey = (BatchKey) o;
+
+            return operation.equals(batchKey.operation) &&
+                    notificationKeyName.equals(batchKey.notificationKeyName) &&
+                    Objects.equals(key, batchKey.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(operation, notificationKeyName, key);
+        }
+    }
+}
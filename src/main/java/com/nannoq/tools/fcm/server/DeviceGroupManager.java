@@ -25,6 +25,8 @@
 
 package com.nannoq.tools.fcm.server;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.net.MediaType;
 import com.nannoq.tools.cluster.apis.APIManager;
 import com.nannoq.tools.fcm.server.data.FcmDevice;
@@ -32,8 +34,6 @@ import com.nannoq.tools.repository.repository.redis.RedisUtils;
 import io.vertx.core.AsyncResult;
 import io.vertx.core.Future;
 import io.vertx.core.Handler;
-import io.vertx.core.Vertx;
-import io.vertx.core.http.HttpClientOptions;
 import io.vertx.core.http.HttpClientRequest;
 import io.vertx.core.http.HttpHeaders;
 import io.vertx.core.json.Json;
@@ -41,10 +41,15 @@ import io.vertx.core.json.JsonObject;
 import io.vertx.core.logging.Logger;
 import io.vertx.core.logging.LoggerFactory;
 import io.vertx.redis.RedisClient;
+import io.vertx.redis.Script;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.function.Consumer;
+import java.util.concurrent.TimeUnit;
 
 import static com.nannoq.tools.fcm.server.FcmServer.GCM_DEVICE_GROUP_HTTP_ENDPOINT_COMPLETE;
 
@@ -61,13 +66,32 @@ public class DeviceGroupManager {
     private final String GCM_SENDER_ID;
     private final String GCM_API_KEY;
 
+    // KEYS: channel hash. ARGV: notification key name, notification key
+    private static final Script SET_KEY_SCRIPT = Script.create(
+            "if redis.call('HSETNX', KEYS[1], ARGV[1], ARGV[2]) == 1 then return {ARGV[2]} end " +
+            "return {redis.call('HGET', KEYS[1], ARGV[1])}");
+
+    static final long DEFAULT_KEY_CACHE_SIZE = 100000L;
+    static final long DEFAULT_KEY_CACHE_TTL = 3600000L;
+
+    // notification keys by channel and notification key name, and the loads currently in flight for them
+    private final Cache<String, String> notificationKeys;
+    private final Map<String, List<Handler<AsyncResult<String>>>> pendingKeyLoads = new HashMap<>();
+    private final DeviceGroupBatcher batcher;
+
     DeviceGroupManager(FcmServer server, MessageSender sender, RedisClient redisClient,
-                       String GCM_SENDER_ID, String GCM_API_KEY) {
+                       String GCM_SENDER_ID, String GCM_API_KEY, long keyCacheSize, long keyCacheTtl,
+                       long batchWindow) {
         this.server = server;
         this.sender = sender;
         this.redisClient = redisClient;
         this.GCM_SENDER_ID = GCM_SENDER_ID;
         this.GCM_API_KEY = GCM_API_KEY;
+        this.notificationKeys = CacheBuilder.newBuilder()
+                .maximumSize(keyCacheSize)
+                .expireAfterWrite(keyCacheTtl, TimeUnit.MILLISECONDS)
+                .build();
+        this.batcher = new DeviceGroupBatcher(server.getVertx(), batchWindow, this::sendGroupOperation);
     }
 
     public void addDeviceToDeviceGroupForUser(FcmDevice device, String appPackageName,
@@ -85,132 +109,180 @@ public class DeviceGroupManager {
         });
     }
 
-    @SuppressWarnings("unchecked")
     private void addDeviceToDeviceGroup(FcmDevice device, String channelKeyName, Handler<AsyncResult<Boolean>> resultHandler) {
-        RedisUtils.performJedisWithRetry(redisClient, redis -> redis.hgetall(channelKeyName, hGetAllResult -> {
-            if (hGetAllResult.failed()) {
-                logger.error("Unable to get Channelmap...");
+        String notificationKeyName = device.getNotificationKeyName();
+        String cacheKey = channelKeyName + ":" + notificationKeyName;
+        String cachedKey = notificationKeys.getIfPresent(cacheKey);
 
-                resultHandler.handle(Future.failedFuture(hGetAllResult.cause()));
-            } else {
-                Map<String, String> channelMap =
-                        Json.decodeValue(hGetAllResult.result().encode(), Map.class);
-                if (channelMap == null) channelMap = new HashMap<>();
-                String notificationKeyName = device.getNotificationKeyName();
-                String key = channelMap.get(notificationKeyName);
+        if (cachedKey != null) {
+            addToGroup(device.getFcmId(), notificationKeyName, cachedKey, addResult -> {
+                if (addResult.failed() || !addResult.result()) notificationKeys.invalidate(cacheKey);
 
-                if (key == null) {
-                    String creationJson = Json.encode(MessageSender.createDeviceGroupCreationJson(
-                            notificationKeyName, device.getFcmId()));
-                    Map<String, String> finalChannelMap = channelMap;
+                resultHandler.handle(addResult);
+            });
+        } else {
+            resolveNotificationKey(device, channelKeyName, cacheKey, keyResult -> {
+                if (keyResult.failed()) {
+                    resultHandler.handle(Future.failedFuture(keyResult.cause()));
+                } else {
+                    addToGroup(device.getFcmId(), notificationKeyName, keyResult.result(), resultHandler);
+                }
+            });
+        }
+    }
 
-                    logger.info("Creation Json is: " + Json.encodePrettily(creationJson));
+    // concurrent misses for the same group wait on the first load instead of racing to create the group
+    private void resolveNotificationKey(FcmDevice device, String channelKeyName, String cacheKey,
+                                        Handler<AsyncResult<String>> keyHandler) {
+        boolean loading;
 
-                    String url = GCM_DEVICE_GROUP_HTTP_ENDPOINT_COMPLETE;
+        synchronized (pendingKeyLoads) {
+            List<Handler<AsyncResult<String>>> waiters = pendingKeyLoads.get(cacheKey);
+            loading = waiters != null;
 
-                    APIManager.performRequestWithCircuitBreaker(resultHandler, addResult -> {
-                        HttpClientOptions opt = new HttpClientOptions()
-                                .setSsl(true);
+            if (!loading) {
+                waiters = new ArrayList<>();
+                pendingKeyLoads.put(cacheKey, waiters);
+            }
 
-                        logger.info("Creation for: " + url);
+            waiters.add(keyHandler);
+        }
 
-                        HttpClientRequest req = server.getVertx().createHttpClient(opt).postAbs(url, clientResponse -> {
-                            int status = clientResponse.statusCode();
-                            logger.info("Create Group response: " + (status == 200));
+        if (loading) return;
 
-                            if (status == 200) {
-                                clientResponse.bodyHandler(bodyBuffer -> {
-                                    logger.info("Device Group Created...");
+        loadNotificationKey(device, channelKeyName, loadResult -> {
+            List<Handler<AsyncResult<String>>> waiters;
 
-                                    JsonObject body = bodyBuffer.toJsonObject();
+            synchronized (pendingKeyLoads) {
+                waiters = pendingKeyLoads.remove(cacheKey);
+            }
 
-                                    logger.info("Response from GCM: " + Json.encodePrettily(body));
+            if (loadResult.succeeded()) notificationKeys.put(cacheKey, loadResult.result());
 
-                                    String notificationKey = body.getString("notification_key");
+            waiters.forEach(waiter -> waiter.handle(loadResult));
+        });
+    }
 
-                                    addResult.complete(Boolean.TRUE);
+    private void loadNotificationKey(FcmDevice device, String channelKeyName, Handler<AsyncResult<String>> keyHandler) {
+        String notificationKeyName = device.getNotificationKeyName();
 
-                                    doDeviceGroupResult(
-                                            notificationKey, finalChannelMap,
-                                            device, notificationKeyName, channelKeyName,
-                                            resultHandler);
-                                });
-                            } else {
-                                clientResponse.bodyHandler(body -> {
-                                    logger.error(clientResponse.statusMessage());
-                                    logger.error(body.toString());
+        RedisUtils.performJedisWithRetry(redisClient, redis -> redis.hget(channelKeyName, notificationKeyName,
+                hGetResult -> {
+            if (hGetResult.failed()) {
+                logger.error("Unable to get notification key from channel: " + channelKeyName);
 
-                                    logger.fatal("Could not create Device Group for " +
-                                            notificationKeyName + " with " + "id: " +
-                                            device.getFcmId());
-                                    logger.fatal("Attempting adding...");
+                keyHandler.handle(Future.failedFuture(hGetResult.cause()));
+            } else if (hGetResult.result() == null) {
+                createDeviceGroup(device, channelKeyName, keyHandler);
+            } else {
+                keyHandler.handle(Future.succeededFuture(hGetResult.result()));
+            }
+        }));
+    }
 
-                                    addResult.fail(new UnknownError("Could not create Device Group for " +
-                                            notificationKeyName + " with " + "id: " +
-                                            device.getFcmId()));
+    private void createDeviceGroup(FcmDevice device, String channelKeyName, Handler<AsyncResult<String>> keyHandler) {
+        String notificationKeyName = device.getNotificationKeyName();
+        String creationJson = Json.encode(MessageSender.createDeviceGroupCreationJson(
+                notificationKeyName, device.getFcmId()));
+        String url = GCM_DEVICE_GROUP_HTTP_ENDPOINT_COMPLETE;
+        Future<String> created = Future.future();
 
-                                    doDeviceGroupResult(
-                                            null, finalChannelMap,
-                                            device, notificationKeyName, channelKeyName,
-                                            resultHandler);
-                                });
-                            }
-                        }).exceptionHandler(message -> {
-                            logger.error("HTTP Error: " + message);
+        logger.info("Creation Json is: " + Json.encodePrettily(creationJson));
 
-                            addResult.fail(message);
-                        });
+        created.setHandler(createResult -> doDeviceGroupResult(createResult.succeeded() ? createResult.result() : null,
+                device, notificationKeyName, channelKeyName, keyHandler));
+
+        Handler<AsyncResult<String>> createHandler = createResult -> {
+            if (createResult.succeeded()) {
+                created.tryComplete(createResult.result());
+            } else {
+                created.tryFail(createResult.cause());
+            }
+        };
+
+        APIManager.performRequestWithCircuitBreaker(createHandler, addResult -> {
+            logger.info("Creation for: " + url);
+
+            HttpClientRequest req = server.getDeviceGroupClient().postAbs(url, clientResponse -> {
+                int status = clientResponse.statusCode();
+                logger.info("Create Group response: " + (status == 200));
 
-                        req.putHeader(HttpHeaders.AUTHORIZATION, "key=" + GCM_API_KEY);
-                        req.putHeader(HttpHeaders.CONTENT_TYPE, MediaType.JSON_UTF_8.toString());
-                        req.putHeader("project_id", GCM_SENDER_ID);
-                        req.end(creationJson);
-                    }, fallBack -> logger.error("Failed DeviceGroupAdd: " + fallBack));
+                if (status == 200) {
+                    clientResponse.bodyHandler(bodyBuffer -> {
+                        logger.info("Device Group Created...");
+
+                        JsonObject body = bodyBuffer.toJsonObject();
+
+                        logger.info("Response from GCM: " + Json.encodePrettily(body));
+
+                        addResult.complete(body.getString("notification_key"));
+                    });
                 } else {
-                    addToGroup(device.getFcmId(), notificationKeyName, key, resultHandler);
+                    clientResponse.bodyHandler(body -> {
+                        logger.error(clientResponse.statusMessage());
+                        logger.error(body.toString());
+
+                        logger.fatal("Could not create Device Group for " +
+                                notificationKeyName + " with " + "id: " +
+                                device.getFcmId());
+                        logger.fatal("Attempting adding...");
+
+                        addResult.fail(new UnknownError("Could not create Device Group for " +
+                                notificationKeyName + " with " + "id: " +
+                                device.getFcmId()));
+                    });
                 }
-            }
-        }));
+            }).exceptionHandler(message -> {
+                logger.error("HTTP Error: " + message);
+
+                addResult.fail(message);
+            });
+
+            req.putHeader(HttpHeaders.AUTHORIZATION, "key=" + GCM_API_KEY);
+            req.putHeader(HttpHeaders.CONTENT_TYPE, MediaType.JSON_UTF_8.toString());
+            req.putHeader("project_id", GCM_SENDER_ID);
+            req.end(creationJson);
+        }, fallBack -> {
+            logger.error("Failed DeviceGroupAdd: " + fallBack);
+
+            created.tryFail(fallBack);
+        });
     }
 
-    private void doDeviceGroupResult(String notificationKey, Map<String, String> channelMap, FcmDevice device,
+    private void doDeviceGroupResult(String notificationKey, FcmDevice device,
                                      String notificationKeyName, String channelKeyName,
-                                     Handler<AsyncResult<Boolean>> resultHandler) {
+                                     Handler<AsyncResult<String>> keyHandler) {
         logger.info("New key for device group is: " + notificationKey);
 
         if (notificationKey == null) {
-            Consumer<String> checkKey = newNotificationKey -> {
-                if (newNotificationKey != null) {
-                    setNewKey(device, channelKeyName, channelMap,
-                            notificationKeyName, newNotificationKey, resultHandler);
+            Future<String> fetched = Future.future();
+
+            fetched.setHandler(fetchKeyResult -> {
+                if (fetchKeyResult.succeeded() && fetchKeyResult.result() != null) {
+                    logger.info("Completed Fetch key...");
+
+                    setNewKey(channelKeyName, notificationKeyName, fetchKeyResult.result(), keyHandler);
                 } else {
-                    resultHandler.handle(Future.failedFuture(new IllegalArgumentException("Could not fetch key...")));
+                    logger.error("Failed Fetch key...");
+
+                    keyHandler.handle(Future.failedFuture(new IllegalArgumentException("Could not fetch key...")));
                 }
-            };
+            });
 
             Handler<AsyncResult<String>> httpResultHandler = fetchKeyResult -> {
                 if (fetchKeyResult.succeeded()) {
-                    if (fetchKeyResult.result() != null) {
-                        logger.info("Completed Fetch key...");
-                    } else {
-                        logger.error("Failed Fetch key...");
-                    }
+                    fetched.tryComplete(fetchKeyResult.result());
                 } else {
-                    logger.error("Failed Fetch key...");
+                    fetched.tryFail(fetchKeyResult.cause());
                 }
-
-                checkKey.accept(fetchKeyResult.result());
             };
 
             String url = GCM_DEVICE_GROUP_HTTP_ENDPOINT_COMPLETE + "?notification_key_name=" + notificationKeyName;
 
             APIManager.performRequestWithCircuitBreaker(httpResultHandler, fetchKeyFuture -> {
-                HttpClientOptions options = new HttpClientOptions()
-                        .setSsl(true);
-
                 logger.info("Querying: " + url);
 
-                HttpClientRequest req = Vertx.currentContext().owner().createHttpClient(options).getAbs(url, res -> {
+                HttpClientRequest req = server.getDeviceGroupClient().getAbs(url, res -> {
                     int status = res.statusCode();
                     logger.info("Fetch Notification key response: " + (status == 200));
 
@@ -240,41 +312,61 @@ public class DeviceGroupManager {
                 req.putHeader(HttpHeaders.CONTENT_TYPE, MediaType.JSON_UTF_8.toString());
                 req.putHeader("project_id", GCM_SENDER_ID);
                 req.end();
-            }, fallBack -> logger.error("HttpFetchFailed: " + fallBack));
+            }, fallBack -> {
+                logger.error("HttpFetchFailed: " + fallBack);
+
+                fetched.tryFail(fallBack);
+            });
         } else {
-            setNewKey(device, channelKeyName, channelMap,
-                    notificationKeyName, notificationKey, resultHandler);
+            setNewKey(channelKeyName, notificationKeyName, notificationKey, keyHandler);
         }
     }
 
-    private void setNewKey(FcmDevice device, String channelKeyName, Map<String, String> channelMap,
-                           String notificationKeyName, String newNotificationKey,
-                           Handler<AsyncResult<Boolean>> resultHandler) {
-        channelMap.put(notificationKeyName, newNotificationKey);
-        JsonObject mapAsJson = new JsonObject(Json.encode(channelMap));
-
-        RedisUtils.performJedisWithRetry(redisClient, redis -> redis.hmset(channelKeyName, mapAsJson, hmSetResult -> {
-            if (hmSetResult.failed()) {
-                logger.error("Failed to set hm for device group...");
+    /**
+     * Stores the key unless another node stored one for the same group first, in which case that key wins so every
+     * node converges on the key already in redis.
+     */
+    private void setNewKey(String channelKeyName, String notificationKeyName, String newNotificationKey,
+                           Handler<AsyncResult<String>> keyHandler) {
+        RedisUtils.performJedisWithRetry(redisClient, redis -> redis.evalScript(SET_KEY_SCRIPT,
+                Collections.singletonList(channelKeyName), Arrays.asList(notificationKeyName, newNotificationKey),
+                setResult -> {
+            if (setResult.failed()) {
+                logger.error("Failed to set notification key for device group...");
+
+                keyHandler.handle(Future.failedFuture(setResult.cause()));
             } else {
-                addToGroup(device.getFcmId(), notificationKeyName, newNotificationKey, resultHandler);
+                String storedKey = setResult.result().getString(0);
+
+                if (!newNotificationKey.equals(storedKey)) {
+                    logger.info("Device group key was already stored by another node: " + notificationKeyName);
+                }
+
+                keyHandler.handle(Future.succeededFuture(storedKey));
             }
         }));
     }
 
-    @SuppressWarnings("UnnecessaryLocalVariable")
     private void addToGroup(String fcmId, String keyName, String key,
                             Handler<AsyncResult<Boolean>> resultHandler) {
-        String addJson = Json.encode(MessageSender.createAddDeviceGroupJson(fcmId, keyName, key));
-        String url = GCM_DEVICE_GROUP_HTTP_ENDPOINT_COMPLETE;
+        batcher.add(MessageSender.GCM_DEVICE_GROUP_ADD_ACTION_NOTATION, fcmId, keyName, key, resultHandler);
+    }
 
-        APIManager.performRequestWithCircuitBreaker(resultHandler, addFuture -> {
-            HttpClientOptions opts = new HttpClientOptions()
-                    .setSsl(true);
+    public void removeFromGroup(String fcmId, String keyName, String key,
+                                Handler<AsyncResult<Boolean>> resultHandler) {
+        batcher.add(MessageSender.GCM_DEVICE_GROUP_REMOVE_ACTION_NOTATION, fcmId, keyName, key, resultHandler);
+    }
+
+    @SuppressWarnings("UnnecessaryLocalVariable")
+    private void sendGroupOperation(String operation, String keyName, String key, List<String> fcmIds,
+                                    Handler<AsyncResult<Boolean>> resultHandler) {
+        String operationJson = Json.encode(MessageSender.createDeviceGroupOperationJson(operation, fcmIds, keyName, key));
+        String url = GCM_DEVICE_GROUP_HTTP_ENDPOINT_COMPLETE;
 
-            HttpClientRequest req = server.getVertx().createHttpClient(opts).postAbs(url, clientResponse -> {
+        APIManager.performRequestWithCircuitBreaker(resultHandler, operationFuture -> {
+            HttpClientRequest req = server.getDeviceGroupClient().postAbs(url, clientResponse -> {
                 int status = clientResponse.statusCode();
-                logger.info("Add To Group response: " + (status == 200));
+                logger.info("Group " + operation + " response: " + (status == 200));
 
                 if (status != 200) {
                     clientResponse.bodyHandler(body -> {
@@ -283,19 +375,19 @@ public class DeviceGroupManager {
                     });
                 }
 
-                addFuture.complete(status == 200);
+                operationFuture.complete(status == 200);
             }).exceptionHandler(message -> {
                 logger.error(message);
 
-                addFuture.fail(message);
+                operationFuture.fail(message);
             });
 
             req.putHeader(HttpHeaders.AUTHORIZATION, "key=" + GCM_API_KEY);
             req.putHeader(HttpHeaders.CONTENT_TYPE, MediaType.JSON_UTF_8.toString());
             req.putHeader("project_id", GCM_SENDER_ID);
-            req.end(addJson);
+            req.end(operationJson);
         }, fallBack -> {
-            logger.error("Failed Add to Group...");
+            logger.error("Failed Group " + operation + "...");
 
             resultHandler.handle(Future.failedFuture(new IllegalArgumentException()));
         });
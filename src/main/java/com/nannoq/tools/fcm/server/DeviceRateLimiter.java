@@ -0,0 +1,56 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Anders Mikkelsen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.nannoq.tools.fcm.server;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Handler;
+
+/**
+ * This interface defines the per device token buckets held against the CCS device message rate, so messages over
+ * the limit are deferred locally instead of being sent into a DEVICE_MESSAGE_RATE_EXCEEDED NACK. A device without a
+ * bucket has a full one, so buckets that have refilled completely can be dropped.
+ *
+ * @author Anders Mikkelsen
+ * @version 31.03.2016
+ */
+interface DeviceRateLimiter {
+    // CCS allows a burst of 240 messages a minute and 5000 messages an hour per device
+    int DEFAULT_BURST = 240;
+    long DEFAULT_RATE_PER_HOUR = 5000L;
+
+    /**
+     * Takes a token for the device. The handler receives the delay in milliseconds before the message may be sent,
+     * or -1 when no token frees up within the max delay, in which case none is taken.
+     */
+    void acquire(String to, long maxDelay, Handler<AsyncResult<Long>> delayHandler);
+
+    /**
+     * Empties the bucket of a device CCS has reported over its limit, leaving it the sustained rate until it refills.
+     */
+    void penalize(String to);
+
+    void close();
+}
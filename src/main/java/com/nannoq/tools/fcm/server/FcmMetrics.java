@@ -0,0 +1,181 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Anders Mikkelsen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.nannoq.tools.fcm.server;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.vertx.core.json.JsonObject;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class records the lifecycle of outbound messages: enqueue to send, send to ACK and send to delivery receipt
+ * latencies, NACKs per error code, retries, device rate deferrals, collapsed messages and redis operation latency.
+ * Latencies are recorded in microseconds into HdrHistograms, which record without locking, and reported in
+ * milliseconds.
+ *
+ * @author Anders Mikkelsen
+ * @version 31.03.2016
+ */
+class FcmMetrics {
+    static final long DEFAULT_TRACKED_MESSAGES = 100000L;
+
+    // receipts can arrive long after the ACK, so timestamps are kept until then unless evicted by size
+    private static final long TRACKED_MESSAGE_TTL = 60L;
+    private static final int SIGNIFICANT_DIGITS = 3;
+
+    private final Cache<String, Lifecycle> lifecycles;
+    private final Histogram enqueueToSend = new ConcurrentHistogram(SIGNIFICANT_DIGITS);
+    private final Histogram sendToAck = new ConcurrentHistogram(SIGNIFICANT_DIGITS);
+    private final Histogram sendToReceipt = new ConcurrentHistogram(SIGNIFICANT_DIGITS);
+    private final Histogram redis = new ConcurrentHistogram(SIGNIFICANT_DIGITS);
+    private final Map<String, LongAdder> nacks = new ConcurrentHashMap<>();
+    private final LongAdder acks = new LongAdder();
+    private final LongAdder receipts = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder rateDeferred = new LongAdder();
+    private final LongAdder rateHeld = new LongAdder();
+    private final LongAdder collapsed = new LongAdder();
+
+    FcmMetrics(long trackedMessages) {
+        lifecycles = CacheBuilder.newBuilder()
+                .maximumSize(trackedMessages)
+                .expireAfterWrite(TRACKED_MESSAGE_TTL, TimeUnit.MINUTES)
+                .build();
+    }
+
+    void enqueued(String messageId) {
+        lifecycles.put(messageId, new Lifecycle(System.nanoTime()));
+    }
+
+    void sent(String messageId) {
+        Lifecycle lifecycle = lifecycles.getIfPresent(messageId);
+
+        if (lifecycle != null) {
+            lifecycle.sentAt = System.nanoTime();
+
+            record(enqueueToSend, lifecycle.sentAt - lifecycle.enqueuedAt);
+        }
+    }
+
+    void acknowledged(String messageId) {
+        acks.increment();
+
+        Lifecycle lifecycle = lifecycles.getIfPresent(messageId);
+
+        if (lifecycle != null && lifecycle.sentAt != 0L) record(sendToAck, System.nanoTime() - lifecycle.sentAt);
+    }
+
+    void nacked(String messageId, String errorCode) {
+        lifecycles.invalidate(messageId);
+        nacks.computeIfAbsent(String.valueOf(errorCode), code -> new LongAdder()).increment();
+    }
+
+    void delivered(String messageId) {
+        receipts.increment();
+
+        Lifecycle lifecycle = lifecycles.getIfPresent(messageId);
+
+        if (lifecycle != null) {
+            lifecycles.invalidate(messageId);
+
+            if (lifecycle.sentAt != 0L) record(sendToReceipt, System.nanoTime() - lifecycle.sentAt);
+        }
+    }
+
+    void retried() {
+        retries.increment();
+    }
+
+    void rateLimited(boolean held) {
+        (held ? rateHeld : rateDeferred).increment();
+    }
+
+    void collapsed(String messageId) {
+        lifecycles.invalidate(messageId);
+        collapsed.increment();
+    }
+
+    void redisOperation(long startNanos) {
+        record(redis, System.nanoTime() - startNanos);
+    }
+
+    JsonObject toJson() {
+        JsonObject nackCounts = new JsonObject();
+        nacks.forEach((errorCode, count) -> nackCounts.put(errorCode, count.sum()));
+
+        return new JsonObject()
+                .put("latency", new JsonObject()
+                        .put("enqueueToSend", toJson(enqueueToSend))
+                        .put("sendToAck", toJson(sendToAck))
+                        .put("sendToReceipt", toJson(sendToReceipt))
+                        .put("redis", toJson(redis)))
+                .put("acks", acks.sum())
+                .put("nacks", nackCounts)
+                .put("receipts", receipts.sum())
+                .put("retries", retries.sum())
+                .put("rateDeferred", rateDeferred.sum())
+                .put("rateHeld", rateHeld.sum())
+                .put("collapsed", collapsed.sum())
+                .put("trackedMessages", lifecycles.size());
+    }
+
+    private static void record(Histogram histogram, long nanos) {
+        histogram.recordValue(Math.max(0L, TimeUnit.NANOSECONDS.toMicros(nanos)));
+    }
+
+    private static JsonObject toJson(Histogram histogram) {
+        Histogram snapshot = histogram.copy();
+
+        return new JsonObject()
+                .put("count", snapshot.getTotalCount())
+                .put("min", toMillis(snapshot.getMinValue()))
+                .put("mean", snapshot.getMean() / 1000.0)
+                .put("p50", toMillis(snapshot.getValueAtPercentile(50.0)))
+                .put("p90", toMillis(snapshot.getValueAtPercentile(90.0)))
+                .put("p99", toMillis(snapshot.getValueAtPercentile(99.0)))
+                .put("p999", toMillis(snapshot.getValueAtPercentile(99.9)))
+                .put("max", toMillis(snapshot.getMaxValue()));
+    }
+
+    private static double toMillis(long micros) {
+        return micros / 1000.0;
+    }
+
+    private static class Lifecycle {
+        private final long enqueuedAt;
+        private volatile long sentAt;
+
+        private Lifecycle(long enqueuedAt) {
+            this.enqueuedAt = enqueuedAt;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Anders Mikkelsen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.nannoq.tools.fcm.server;
+
+/**
+ * This class is the failure of a message that CCS rejected with a NACK, and that will not be retried.
+ *
+ * @author Anders Mikkelsen
+ * @version 31.03.2016
+ */
+public class FcmNackException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private final String messageId;
+    private final String errorCode;
+
+    public FcmNackException(String messageId, String errorCode, String errorDescription) {
+        super(errorCode + " for " + messageId + (errorDescription == null ? "" : ": " + errorDescription));
+
+        this.messageId = messageId;
+        this.errorCode = errorCode;
+    }
+
+    public String getMessageId() {
+        return messageId;
+    }
+
+    public String getErrorCode() {
+        return errorCode;
+    }
+}
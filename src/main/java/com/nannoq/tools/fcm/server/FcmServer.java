@@ -30,14 +30,26 @@ import com.nannoq.tools.fcm.server.data.DefaultDataMessageHandlerImpl;
 import com.nannoq.tools.fcm.server.data.DefaultRegistrationServiceImpl;
 import com.nannoq.tools.fcm.server.data.RegistrationService;
 import com.nannoq.tools.fcm.server.messageutils.FcmNotification;
+import com.nannoq.tools.fcm.server.messageutils.FcmNotificationTemplate;
 import com.nannoq.tools.fcm.server.messageutils.FcmPacketExtension;
 import com.nannoq.tools.repository.repository.redis.RedisUtils;
 import io.vertx.codegen.annotations.Fluent;
 import io.vertx.core.AbstractVerticle;
+import io.vertx.core.AsyncResult;
 import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.WorkerExecutor;
+import io.vertx.core.eventbus.MessageConsumer;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.http.HttpServer;
+import io.vertx.core.http.HttpVersion;
+import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import io.vertx.core.logging.Logger;
 import io.vertx.core.logging.LoggerFactory;
+import io.vertx.core.streams.ReadStream;
+import io.vertx.ext.web.Router;
 import io.vertx.redis.RedisClient;
 import org.jivesoftware.smack.*;
 import org.jivesoftware.smack.filter.PacketTypeFilter;
@@ -46,6 +58,11 @@ import org.jivesoftware.smack.provider.PacketExtensionProvider;
 import org.jivesoftware.smack.provider.ProviderManager;
 
 import javax.net.ssl.SSLSocketFactory;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.nannoq.tools.fcm.server.XMPPPacketListener.GCM_ELEMENT_NAME;
 import static com.nannoq.tools.fcm.server.XMPPPacketListener.GCM_NAMESPACE;
@@ -62,6 +79,32 @@ public class FcmServer extends AbstractVerticle {
     public static final String GCM_DEVICE_GROUP_HTTP_ENDPOINT_COMPLETE =
             "https://" + GCM_DEVICE_GROUP_BASE + GCM_DEVICE_GROUP_HTTP_ENDPOINT;
 
+    // CCS allows up to 1000 simultaneous connections per sender id
+    private static final int DEFAULT_CONNECTION_POOL_SIZE = 1;
+    private static final int MAX_CONNECTION_POOL_SIZE = 1000;
+
+    // CCS allows up to 100 unacknowledged downstream messages per connection
+    private static final int DEFAULT_MAX_PENDING_MESSAGES = 100;
+    private static final int DEFAULT_MAX_QUEUED_MESSAGES = 10000;
+
+    // outbox modes
+    private static final String OUTBOX_MODE_HASH = "hash";
+    private static final String OUTBOX_MODE_STREAM = "stream";
+    private static final long DEFAULT_OUTBOX_RECOVERY_INTERVAL = 60000L;
+    private static final long IN_FLIGHT_SWEEP_INTERVAL = 1000L;
+
+    // device rate limit modes
+    private static final String RATE_LIMIT_MODE_LOCAL = "local";
+    private static final String RATE_LIMIT_MODE_REDIS = "redis";
+    private static final String RATE_LIMIT_MODE_NONE = "none";
+
+    // device group http client
+    private static final int DEFAULT_HTTP_MAX_POOL_SIZE = 20;
+
+    // metrics
+    private static final String DEFAULT_METRICS_ADDRESS = "fcm.metrics";
+    private static final String METRICS_HTTP_PATH = "/metrics";
+
     private final Logger logger = LoggerFactory.getLogger(FcmServer.class.getSimpleName());
 
     private String PACKAGE_NAME_BASE;
@@ -75,15 +118,27 @@ public class FcmServer extends AbstractVerticle {
     private RegistrationService registrationService;
 
     private RedisClient redisClient;
+    private MessageOutbox outbox;
+    private long outboxRecoveryTimer = -1;
+    private long inFlightSweepTimer = -1;
+    private HttpClient deviceGroupClient;
+    private WorkerExecutor inboundExecutor;
+    private InboundDispatcher inboundDispatcher;
+    private NotificationFanOut notificationFanOut;
+    private DeliveryTracker deliveryTracker;
+    private DeviceRateLimiter deviceRateLimiter;
+    private FcmMetrics metrics;
+    private MessageLog messageLog = new MessageLog(MessageLog.DEFAULT_SAMPLE_RATE);
+    private MessageConsumer<JsonObject> metricsConsumer;
+    private HttpServer metricsHttpServer;
+    private DeviceGroupManager deviceGroupManager;
 
     private ConnectionConfiguration connectionConfiguration;
 
-    private Connection primaryConnection;
-    private Connection secondaryConnection;
-
-    private boolean primaryIsDraining;
-    private boolean primaryConnecting;
-    private boolean secondaryConnecting;
+    private int connectionPoolSize;
+    private int maxPendingMessages;
+    private final List<CcsConnection> connections = new CopyOnWriteArrayList<>();
+    private final AtomicInteger connectionCounter = new AtomicInteger();
 
     private FcmServer(boolean dev) {
         this.dev = dev;
@@ -153,121 +208,390 @@ public class FcmServer extends AbstractVerticle {
         PACKAGE_NAME_BASE = config().getString("basePackageNameFcm");
         GCM_SENDER_ID = config().getString("gcmSenderId");
         GCM_API_KEY = config().getString("gcmApiKey");
+        connectionPoolSize = config().getInteger("fcmConnectionPoolSize", DEFAULT_CONNECTION_POOL_SIZE);
+        maxPendingMessages = config().getInteger("fcmMaxPendingMessagesPerConnection", DEFAULT_MAX_PENDING_MESSAGES);
+        int maxQueuedMessages = config().getInteger("fcmMaxQueuedMessages", DEFAULT_MAX_QUEUED_MESSAGES);
+        long retryBaseDelay = config().getLong("fcmRetryBaseDelayMs", RetryScheduler.DEFAULT_BASE_DELAY);
+        long retryMaxDelay = config().getLong("fcmRetryMaxDelayMs", RetryScheduler.DEFAULT_MAX_DELAY);
+        String outboxMode = config().getString("fcmOutboxMode", OUTBOX_MODE_HASH);
+        long outboxRecoveryInterval = config().getLong("fcmOutboxRecoveryIntervalMs",
+                DEFAULT_OUTBOX_RECOVERY_INTERVAL);
+        long outboxRecoveryIdle = config().getLong("fcmOutboxRecoveryIdleMs", RedisHashOutbox.DEFAULT_IDLE_THRESHOLD);
+        long outboxRecoveryPageDelay = config().getLong("fcmOutboxRecoveryPageDelayMs",
+                MessageSender.DEFAULT_RECOVERY_PAGE_DELAY);
+        int httpMaxPoolSize = config().getInteger("fcmHttpMaxPoolSize", DEFAULT_HTTP_MAX_POOL_SIZE);
+        boolean httpPipelining = config().getBoolean("fcmHttpPipelining", false);
+        boolean http2 = config().getBoolean("fcmHttp2", false);
+        long keyCacheSize = config().getLong("fcmDeviceGroupKeyCacheSize", DeviceGroupManager.DEFAULT_KEY_CACHE_SIZE);
+        long keyCacheTtl = config().getLong("fcmDeviceGroupKeyCacheTtlMs", DeviceGroupManager.DEFAULT_KEY_CACHE_TTL);
+        long groupBatchWindow = config().getLong("fcmDeviceGroupBatchWindowMs", DeviceGroupBatcher.DEFAULT_BATCH_WINDOW);
+        int inboundControlCapacity = config().getInteger("fcmInboundControlQueueSize",
+                InboundDispatcher.DEFAULT_CONTROL_CAPACITY);
+        int inboundDataCapacity = config().getInteger("fcmInboundDataQueueSize",
+                InboundDispatcher.DEFAULT_DATA_CAPACITY);
+        int inboundWorkerPoolSize = config().getInteger("fcmInboundWorkerPoolSize",
+                InboundDispatcher.DEFAULT_WORKER_POOL_SIZE);
+        int fanOutMaxOutstanding = config().getInteger("fcmFanOutMaxOutstanding",
+                NotificationFanOut.DEFAULT_MAX_OUTSTANDING);
+        long deliveryTimeout = config().getLong("fcmDeliveryTimeoutMs", DeliveryTracker.DEFAULT_TIMEOUT);
+        long metricsTrackedMessages = config().getLong("fcmMetricsTrackedMessages",
+                FcmMetrics.DEFAULT_TRACKED_MESSAGES);
+        String metricsAddress = config().getString("fcmMetricsAddress", DEFAULT_METRICS_ADDRESS);
+        int metricsHttpPort = config().getInteger("fcmMetricsHttpPort", 0);
+        double logSampleRate = config().getDouble("fcmLogSampleRate", MessageLog.DEFAULT_SAMPLE_RATE);
+        String endpoint = config().getString("fcmEndpoint", GCM_ENDPOINT);
+        int port = config().getInteger("fcmPort", GCM_PORT);
+        boolean ssl = config().getBoolean("fcmSsl", true);
+        String rateLimitMode = config().getString("fcmDeviceRateLimitMode", RATE_LIMIT_MODE_LOCAL);
+        int rateBurst = config().getInteger("fcmDeviceRateBurst", DeviceRateLimiter.DEFAULT_BURST);
+        long ratePerHour = config().getLong("fcmDeviceRatePerHour", DeviceRateLimiter.DEFAULT_RATE_PER_HOUR);
+        boolean coalesce = config().getBoolean("fcmCoalesceCollapseKeys", true);
 
         JsonObject errors = new JsonObject();
 
         if (PACKAGE_NAME_BASE == null) errors.put("packageNameBase_error", "Cannot be null!");
         if (GCM_SENDER_ID == null) errors.put("gcmSenderId_error", "Cannot be null!");
         if (GCM_API_KEY == null) errors.put("gcmApiKey_error", "Cannot be null!");
+        if (connectionPoolSize < 1 || connectionPoolSize > MAX_CONNECTION_POOL_SIZE) {
+            errors.put("fcmConnectionPoolSize_error", "Must be between 1 and " + MAX_CONNECTION_POOL_SIZE + "!");
+        }
+        if (maxPendingMessages < 1 || maxPendingMessages > DEFAULT_MAX_PENDING_MESSAGES) {
+            errors.put("fcmMaxPendingMessagesPerConnection_error",
+                    "Must be between 1 and " + DEFAULT_MAX_PENDING_MESSAGES + "!");
+        }
+        if (maxQueuedMessages < 0) errors.put("fcmMaxQueuedMessages_error", "Cannot be negative!");
+        if (retryBaseDelay < 1) errors.put("fcmRetryBaseDelayMs_error", "Must be positive!");
+        if (retryMaxDelay < retryBaseDelay) errors.put("fcmRetryMaxDelayMs_error", "Cannot be below base delay!");
+        if (!OUTBOX_MODE_HASH.equals(outboxMode) && !OUTBOX_MODE_STREAM.equals(outboxMode)) {
+            errors.put("fcmOutboxMode_error", "Must be " + OUTBOX_MODE_HASH + " or " + OUTBOX_MODE_STREAM + "!");
+        }
+        if (outboxRecoveryInterval < 1) errors.put("fcmOutboxRecoveryIntervalMs_error", "Must be positive!");
+        if (outboxRecoveryIdle < retryMaxDelay) {
+            errors.put("fcmOutboxRecoveryIdleMs_error", "Cannot be below retry max delay!");
+        }
+        if (outboxRecoveryPageDelay < 1) errors.put("fcmOutboxRecoveryPageDelayMs_error", "Must be positive!");
+        if (httpMaxPoolSize < 1) errors.put("fcmHttpMaxPoolSize_error", "Must be positive!");
+        if (keyCacheSize < 0) errors.put("fcmDeviceGroupKeyCacheSize_error", "Cannot be negative!");
+        if (keyCacheTtl < 1) errors.put("fcmDeviceGroupKeyCacheTtlMs_error", "Must be positive!");
+        if (groupBatchWindow < 1) errors.put("fcmDeviceGroupBatchWindowMs_error", "Must be positive!");
+        if (inboundControlCapacity < 1) errors.put("fcmInboundControlQueueSize_error", "Must be positive!");
+        if (inboundDataCapacity < 1) errors.put("fcmInboundDataQueueSize_error", "Must be positive!");
+        if (inboundWorkerPoolSize < 1) errors.put("fcmInboundWorkerPoolSize_error", "Must be positive!");
+        if (fanOutMaxOutstanding < 1) errors.put("fcmFanOutMaxOutstanding_error", "Must be positive!");
+        if (deliveryTimeout < 1) errors.put("fcmDeliveryTimeoutMs_error", "Must be positive!");
+        if (metricsTrackedMessages < 0) errors.put("fcmMetricsTrackedMessages_error", "Cannot be negative!");
+        if (metricsHttpPort < 0 || metricsHttpPort > 65535) {
+            errors.put("fcmMetricsHttpPort_error", "Must be between 0 and 65535!");
+        }
+        if (logSampleRate < 0.0 || logSampleRate > 1.0) {
+            errors.put("fcmLogSampleRate_error", "Must be between 0 and 1!");
+        }
+        if (port < 1 || port > 65535) errors.put("fcmPort_error", "Must be between 1 and 65535!");
+        if (!RATE_LIMIT_MODE_LOCAL.equals(rateLimitMode) && !RATE_LIMIT_MODE_REDIS.equals(rateLimitMode) &&
+                !RATE_LIMIT_MODE_NONE.equals(rateLimitMode)) {
+            errors.put("fcmDeviceRateLimitMode_error", "Must be " + RATE_LIMIT_MODE_LOCAL + ", " +
+                    RATE_LIMIT_MODE_REDIS + " or " + RATE_LIMIT_MODE_NONE + "!");
+        }
+        if (rateBurst < 1) errors.put("fcmDeviceRateBurst_error", "Must be positive!");
+        if (ratePerHour < 1) errors.put("fcmDeviceRatePerHour_error", "Must be positive!");
 
         if (errors.isEmpty()) {
+            deviceGroupClient = vertx.createHttpClient(createDeviceGroupClientOptions(
+                    httpMaxPoolSize, httpPipelining, http2));
+            inboundExecutor = vertx.createSharedWorkerExecutor("fcm-inbound-" + deploymentID(), inboundWorkerPoolSize);
+            inboundDispatcher = new InboundDispatcher(context, inboundExecutor,
+                    inboundControlCapacity, inboundDataCapacity);
+            notificationFanOut = new NotificationFanOut(vertx, messageSender, fanOutMaxOutstanding);
+            deliveryTracker = new DeliveryTracker(vertx, deliveryTimeout);
+            messageSender.setDeliveryTracker(deliveryTracker);
+            metrics = new FcmMetrics(metricsTrackedMessages);
+            messageSender.setMetrics(metrics);
+            exposeMetrics(metricsAddress, metricsHttpPort);
+            messageLog = new MessageLog(logSampleRate);
+            messageSender.setMessageLog(messageLog);
+            if (coalesce) messageSender.setCoalescer(new CollapseKeyCoalescer());
+
             vertx.executeBlocking(fut -> {
-                connectionConfiguration = new ConnectionConfiguration(GCM_ENDPOINT, GCM_PORT);
+                connectionConfiguration = new ConnectionConfiguration(endpoint, port);
                 redisClient = RedisUtils.getRedisClient(vertx, config());
-                this.messageSender.setRedisClient(redisClient);
-                setConfiguration();
+                outbox = createOutbox(outboxMode, outboxRecoveryIdle);
+                this.messageSender.setOutbox(outbox);
+                this.messageSender.setRecoveryPageDelay(outboxRecoveryPageDelay);
+                this.messageSender.setMaxQueuedMessages(maxQueuedMessages);
+                this.messageSender.setRetryScheduler(new RetryScheduler(retryBaseDelay, retryMaxDelay));
+                deviceRateLimiter = createDeviceRateLimiter(rateLimitMode, rateBurst, ratePerHour);
+                this.messageSender.setDeviceRateLimiter(deviceRateLimiter, retryMaxDelay);
+                deviceGroupManager = new DeviceGroupManager(this, messageSender, redisClient,
+                        GCM_SENDER_ID, GCM_API_KEY, keyCacheSize, keyCacheTtl, groupBatchWindow);
+                setConfiguration(ssl);
+
+                fut.complete();
+            }, false, setupResult -> {
+                if (setupResult.failed()) {
+                    startFuture.fail(setupResult.cause());
+                } else {
+                    outbox.start(outboxResult -> {
+                        if (outboxResult.failed()) {
+                            logger.error("Message outbox could not be started!", outboxResult.cause());
+
+                            startFuture.fail(outboxResult.cause());
+                        } else {
+                            connectPool(outboxRecoveryInterval, deliveryTimeout, startFuture);
+                        }
+                    });
+                }
+            });
+        } else {
+            startFuture.fail(errors.encodePrettily());
+        }
+    }
 
-                try {
-                    if (primaryConnection == null || !primaryConnection.isConnected()) {
-                        primaryConnection = connect();
-                        addPacketListener(primaryConnection);
-                        auth(primaryConnection);
+    /**
+     * HTTP/2 is opt-in as ALPN needs either Java 9 or a native ssl engine on the classpath, the client falls back to
+     * pooled keep-alive HTTP/1.1 otherwise.
+     */
+    private HttpClientOptions createDeviceGroupClientOptions(int maxPoolSize, boolean pipelining, boolean http2) {
+        HttpClientOptions options = new HttpClientOptions()
+                .setSsl(true)
+                .setKeepAlive(true)
+                .setMaxPoolSize(maxPoolSize)
+                .setPipelining(pipelining)
+                .setTryUseCompression(true);
+
+        if (http2) {
+            options.setProtocolVersion(HttpVersion.HTTP_2)
+                    .setUseAlpn(true)
+                    .setHttp2MaxPoolSize(Math.max(1, maxPoolSize / 10));
+        }
 
-                        logger.info("GCM Connection established...");
+        return options;
+    }
+
+    /**
+     * Metrics are answered on the event bus address, and served as json over HTTP when a port is configured.
+     */
+    private void exposeMetrics(String metricsAddress, int metricsHttpPort) {
+        metricsConsumer = vertx.eventBus().consumer(metricsAddress, message -> message.reply(getMetrics()));
+
+        if (metricsHttpPort > 0) {
+            Router router = Router.router(vertx);
+            router.get(METRICS_HTTP_PATH).handler(routingContext -> routingContext.response()
+                    .putHeader("Content-Type", "application/json")
+                    .end(getMetrics().encode()));
+
+            metricsHttpServer = vertx.createHttpServer()
+                    .requestHandler(router::accept)
+                    .listen(metricsHttpPort, listenResult -> {
+                        if (listenResult.failed()) {
+                            logger.error("Metrics endpoint could not be started!", listenResult.cause());
+                        } else {
+                            logger.info("Metrics available on port " + metricsHttpPort + METRICS_HTTP_PATH);
+                        }
+                    });
+        }
+    }
 
-                        fut.complete();
-                    }
-                } catch (XMPPException e) {
-                    logger.error("GCM Connection could not be established!", e);
+    private MessageOutbox createOutbox(String outboxMode, long outboxRecoveryIdle) {
+        String nodeId = config().getString("fcmOutboxNodeId", UUID.randomUUID().toString());
 
-                    fut.fail(e);
-                }
-            }, false, startFuture.completer());
-        } else {
-            startFuture.fail(errors.encodePrettily());
+        if (OUTBOX_MODE_STREAM.equals(outboxMode)) {
+            return new RedisStreamOutbox(vertx, redisClient, nodeId,
+                    config().getLong("fcmOutboxMaxLength", RedisStreamOutbox.DEFAULT_MAX_LENGTH));
         }
+
+        return new RedisHashOutbox(vertx, redisClient, MessageSender.REDIS_MESSAGE_HASH, nodeId, outboxRecoveryIdle);
+    }
+
+    /**
+     * Local limits hold per node, so with several nodes sending to the same devices the redis mode keeps them shared.
+     */
+    private DeviceRateLimiter createDeviceRateLimiter(String rateLimitMode, int burst, long ratePerHour) {
+        if (RATE_LIMIT_MODE_REDIS.equals(rateLimitMode)) {
+            return new RedisDeviceRateLimiter(redisClient, burst, ratePerHour);
+        } else if (RATE_LIMIT_MODE_LOCAL.equals(rateLimitMode)) {
+            return new LocalDeviceRateLimiter(vertx, burst, ratePerHour);
+        }
+
+        return null;
+    }
+
+    private void connectPool(long outboxRecoveryInterval, long deliveryTimeout, Future<Void> startFuture) {
+        vertx.executeBlocking(fut -> {
+            fillConnectionPool();
+
+            if (isOnline()) {
+                logger.info("GCM Connection pool established with " + connections.size() + " connections...");
+
+                fut.complete();
+            } else {
+                logger.error("GCM Connection could not be established!");
+
+                fut.fail(new IllegalStateException("GCM Connection could not be established!"));
+            }
+        }, false, poolResult -> {
+            if (poolResult.failed()) {
+                outbox.close();
+
+                startFuture.fail(poolResult.cause());
+            } else {
+                messageSender.recover();
+                outboxRecoveryTimer = vertx.setPeriodic(outboxRecoveryInterval, timerId -> messageSender.recover());
+                inFlightSweepTimer = vertx.setPeriodic(Math.min(IN_FLIGHT_SWEEP_INTERVAL, deliveryTimeout),
+                        timerId -> resendUnanswered(deliveryTimeout));
+
+                startFuture.complete();
+            }
+        });
     }
 
     @Override
     public void stop(Future<Void> stopFuture) throws Exception {
         logger.info("Shutting down GCM Server: " + this + "...");
 
-        vertx.executeBlocking(fut -> {
-            primaryConnection.disconnect();
+        if (outboxRecoveryTimer != -1) vertx.cancelTimer(outboxRecoveryTimer);
+        if (inFlightSweepTimer != -1) vertx.cancelTimer(inFlightSweepTimer);
+        if (outbox != null) outbox.close();
+        if (deviceGroupClient != null) deviceGroupClient.close();
+        if (inboundExecutor != null) inboundExecutor.close();
+        if (deliveryTracker != null) deliveryTracker.close();
+        if (deviceRateLimiter != null) deviceRateLimiter.close();
+        if (metricsConsumer != null) metricsConsumer.unregister();
+        if (metricsHttpServer != null) metricsHttpServer.close();
 
-            if (secondaryConnection != null && secondaryConnection.isConnected()) {
-                secondaryConnection.disconnect();
-            }
+        vertx.executeBlocking(fut -> {
+            connections.forEach(CcsConnection::disconnect);
+            connections.clear();
 
             fut.complete();
         }, false, stopFuture.completer());
     }
 
     public void checkForDeadConnections() {
-        if (primaryConnection != null && !primaryConnection.isConnected() &&
-                secondaryConnection != null && secondaryConnection.isConnected()) {
-            try {
-                logger.info("Draining on primary resolved, reconnecting...");
+        connections.stream()
+                .filter(connection -> !connection.isConnected())
+                .forEach(connection -> {
+                    logger.info("Removing dead connection: " + connection);
 
-                primaryConnecting = true;
-                primaryIsDraining = false;
-                primaryConnection = connect();
-                addPacketListener(primaryConnection);
-                auth(primaryConnection);
+                    connections.remove(connection);
+                    connection.disconnect();
+                });
 
-                logger.info("Disconnecting secondary...");
-                secondaryConnection.disconnect();
-            } catch (XMPPException e) {
-                logger.error("GCM Connection could not be established!");
-            }
-            
-            primaryConnecting = false;
-        } else if (primaryConnection != null && primaryConnection.isConnected()) {
-            logger.debug("Primary: " + primaryConnection.isConnected() + ", Sec is null");
-        } else if ((primaryConnection != null && !primaryConnection.isConnected() &&
-                    secondaryConnection != null && !secondaryConnection.isConnected()) ||
-                (primaryConnection == null && secondaryConnection == null)) {
-            if (primaryConnecting || secondaryConnecting) {
-                logger.info((!primaryConnecting ? "Secondary" : "Primary") +  " already attempting connection...");
-            } else {
-                logger.info("No connection, reconnecting...");
-
-                try {
-                    primaryConnecting = true;
-                    primaryIsDraining = false;
-                    primaryConnection = connect();
-                    addPacketListener(primaryConnection);
-                    auth(primaryConnection);
-                } catch (XMPPException e) {
-                    e.printStackTrace();
-
-                    logger.error("GCM Connection could not be established!");
-                }
+        if (activeConnectionCount() < connectionPoolSize) {
+            logger.info("Connection pool below " + connectionPoolSize + " connections, reconnecting...");
 
-                primaryConnecting = false;
-            }
+            fillConnectionPool();
         } else {
-            logger.error("UNKNOWN STATE: " + primaryConnection + " : " + secondaryConnection);
+            logger.debug("Connection pool is healthy: " + connections);
         }
     }
 
     public boolean sendNotification(String to, FcmNotification notification) {
-        String packageNameExtension = notification.getPackageNameExtension();
-        String appPackageName = packageNameExtension.equals("devApp") ? PACKAGE_NAME_BASE :
-                PACKAGE_NAME_BASE + "." + packageNameExtension;
+        messageSender.send(MessageSender.createCustomNotification(getAppPackageName(notification), to, notification));
 
-        messageSender.send(MessageSender.createCustomNotification(appPackageName, to, notification));
+        return true;
+    }
 
-        logger.info("Passing notification to: " + to);
+    /**
+     * Encodes the notification once, for sending the same notification to many recipients.
+     */
+    public FcmNotificationTemplate createNotificationTemplate(FcmNotification notification) {
+        return MessageSender.createNotificationTemplate(getAppPackageName(notification), notification, false);
+    }
+
+    public boolean sendNotification(String to, FcmNotificationTemplate template) {
+        messageSender.send(template, to);
 
         return true;
     }
 
-    private void setConfiguration() {
+    /**
+     * The handler receives the message id once the notification is stored for delivery, or the reason it was not.
+     */
+    public void sendNotification(String to, FcmNotification notification,
+                                 Handler<AsyncResult<String>> acceptedHandler) {
+        String messageId = messageSender.newMessageId();
+        FcmNotificationTemplate template = createNotificationTemplate(notification);
+
+        messageSender.submit(messageId, to, template.getCollapseKey(), template.render(to, messageId), acceptedHandler);
+    }
+
+    /**
+     * The handler receives the ACK for the notification from CCS. It fails with an FcmNackException when CCS rejects
+     * the notification for good, or with a TimeoutException when no answer arrives within fcmDeliveryTimeoutMs of
+     * the first send, resends included. A notification replaced by a newer one for the same device and collapse key
+     * before it was sent receives the answer to the newer one, within the timeout of the newer one.
+     */
+    public void deliverNotification(String to, FcmNotification notification,
+                                    Handler<AsyncResult<JsonObject>> deliveryHandler) {
+        deliverNotification(to, createNotificationTemplate(notification), deliveryHandler);
+    }
+
+    public void deliverNotification(String to, FcmNotificationTemplate template,
+                                    Handler<AsyncResult<JsonObject>> deliveryHandler) {
+        String messageId = messageSender.newMessageId();
+
+        messageSender.deliver(messageId, to, template.getCollapseKey(), template.render(to, messageId),
+                deliveryHandler);
+    }
+
+    public void sendConditionNotification(String condition, FcmNotification notification,
+                                          Handler<AsyncResult<String>> acceptedHandler) {
+        String messageId = messageSender.newMessageId();
+
+        messageSender.submit(messageId, null, null,
+                createNotificationTemplate(notification).renderCondition(condition, messageId),
+                acceptedHandler);
+    }
+
+    /**
+     * The handler receives the ACK for the condition notification from CCS, and fails like deliverNotification.
+     */
+    public void deliverConditionNotification(String condition, FcmNotification notification,
+                                             Handler<AsyncResult<JsonObject>> deliveryHandler) {
+        String messageId = messageSender.newMessageId();
+
+        messageSender.deliver(messageId, null, null,
+                createNotificationTemplate(notification).renderCondition(condition, messageId),
+                deliveryHandler);
+    }
+
+    /**
+     * Sends the notification to every recipient with a bounded amount of sends in flight. The handler receives the
+     * amount of recipients CCS acknowledged as "accepted", and of those nacked for good or timed out as "failed".
+     */
+    public void sendNotification(Iterable<String> recipients, FcmNotification notification,
+                                 Handler<AsyncResult<JsonObject>> resultHandler) {
+        notificationFanOut.send(createNotificationTemplate(notification), recipients.iterator(), resultHandler);
+    }
+
+    /**
+     * Sends the notification to every recipient read from the stream, pausing it while the window of sends in flight
+     * is full. The returned stream emits one outcome per recipient and starts consuming once its handler is set.
+     */
+    public ReadStream<JsonObject> sendNotification(ReadStream<String> recipients, FcmNotification notification) {
+        return notificationFanOut.stream(createNotificationTemplate(notification), recipients);
+    }
+
+    private String getAppPackageName(FcmNotification notification) {
+        String packageNameExtension = notification.getPackageNameExtension();
+
+        return packageNameExtension.equals("devApp") ? PACKAGE_NAME_BASE :
+                PACKAGE_NAME_BASE + "." + packageNameExtension;
+    }
+
+    /**
+     * Plain sockets are only meant for local CCS endpoints, like the fake CCS server used in load tests.
+     */
+    private void setConfiguration(boolean ssl) {
         connectionConfiguration.setReconnectionAllowed(true);
         connectionConfiguration.setRosterLoadedAtLogin(false);
         connectionConfiguration.setSendPresence(false);
-        connectionConfiguration.setSocketFactory(SSLSocketFactory.getDefault());
+
+        if (ssl) {
+            connectionConfiguration.setSocketFactory(SSLSocketFactory.getDefault());
+        } else {
+            connectionConfiguration.setSecurityMode(ConnectionConfiguration.SecurityMode.disabled);
+        }
 
         ProviderManager.getInstance().addExtensionProvider(GCM_ELEMENT_NAME, GCM_NAMESPACE,
                 (PacketExtensionProvider) parser -> {
@@ -276,19 +600,51 @@ public class FcmServer extends AbstractVerticle {
                 });
     }
 
-    private Connection connect() throws XMPPException {
+    private synchronized void fillConnectionPool() {
+        long missingConnections = connectionPoolSize - activeConnectionCount();
+
+        for (int i = 0; i < missingConnections; i++) {
+            CcsConnection connection = null;
+
+            try {
+                connection = connect();
+                addPacketListener(connection);
+                auth(connection.getConnection());
+                connections.add(connection);
+
+                logger.info("GCM Connection established: " + connection);
+            } catch (XMPPException e) {
+                logger.error("GCM Connection could not be established!", e);
+
+                if (connection != null) connection.disconnect();
+            }
+        }
+
+        if (missingConnections > 0) messageSender.drainQueue();
+    }
+
+    private long activeConnectionCount() {
+        return connections.stream()
+                .filter(connection -> !connection.isDraining())
+                .count();
+    }
+
+    private CcsConnection connect() throws XMPPException {
         logger.info("Connecting to GCM...");
 
         Connection connection = new XMPPConnection(connectionConfiguration);
         connection.connect();
 
+        CcsConnection ccsConnection = new CcsConnection(
+                connectionCounter.incrementAndGet(), connection, maxPendingMessages);
+
         logger.info("Adding connectionlistener...");
 
         connection.addConnectionListener(new ConnectionListener() {
 
             @Override
             public void reconnectionSuccessful() {
-                logger.info("Reconnected!");
+                logger.info("Reconnected: " + ccsConnection);
             }
 
             @Override
@@ -305,18 +661,53 @@ public class FcmServer extends AbstractVerticle {
             public void connectionClosedOnError(Exception e) {
                 logger.info("Connection closed on error: " + e);
 
-                if (!primaryConnection.isConnected()) {
-                    primaryIsDraining = false;
+                if (ccsConnection.isDraining()) {
+                    connections.remove(ccsConnection);
+                    ccsConnection.disconnect();
                 }
+
+                resendInFlight(ccsConnection);
             }
 
             @Override
             public void connectionClosed() {
-                logger.info("Connection closed");
+                logger.info("Connection closed: " + ccsConnection);
+
+                connections.remove(ccsConnection);
+                resendInFlight(ccsConnection);
             }
         });
 
-        return connection;
+        return ccsConnection;
+    }
+
+    // CCS answers every message it receives, so a message unanswered for the delivery timeout is taken as lost
+    private void resendUnanswered(long maxAge) {
+        boolean released = false;
+
+        for (CcsConnection ccsConnection : connections) {
+            Set<String> unanswered = ccsConnection.releaseExpired(maxAge);
+
+            if (!unanswered.isEmpty()) {
+                logger.warn("Resending " + unanswered.size() + " messages unanswered for " + maxAge + " ms from " +
+                        ccsConnection);
+
+                unanswered.forEach(messageSender::resend);
+                released = true;
+            }
+        }
+
+        if (released) messageSender.drainQueue();
+    }
+
+    private void resendInFlight(CcsConnection ccsConnection) {
+        Set<String> unacknowledged = ccsConnection.releaseAll();
+
+        if (!unacknowledged.isEmpty()) {
+            logger.info("Resending " + unacknowledged.size() + " unacknowledged messages from " + ccsConnection);
+
+            unacknowledged.forEach(messageSender::resend);
+        }
     }
 
     private void auth(Connection connection) throws XMPPException {
@@ -325,60 +716,104 @@ public class FcmServer extends AbstractVerticle {
         connection.login(GCM_SENDER_ID + "@gcm.googleapis.com", GCM_API_KEY);
     }
 
-    private void addPacketListener(Connection connection) {
-        logger.info("Adding packetlistener and packetinterceptor...");
+    private void addPacketListener(CcsConnection ccsConnection) {
+        logger.info("Adding packetlistener...");
+
+        Connection connection = ccsConnection.getConnection();
 
         connection.addPacketListener(new XMPPPacketListener(
-                this, redisClient, dataMessageHandler, registrationService, GCM_SENDER_ID, GCM_API_KEY),
+                this, ccsConnection, inboundDispatcher, messageSender, redisClient,
+                dataMessageHandler, registrationService,
+                GCM_SENDER_ID, GCM_API_KEY),
                 new PacketTypeFilter(Message.class));
-
-        connection.addPacketInterceptor(packet ->
-                logger.info("Sent: " + packet.toXML().replaceAll("&quot;", "'")), new PacketTypeFilter(Message.class));
     }
 
+    /**
+     * @deprecated CCS drains single connections, use {@link #setDraining(Connection)} with the connection the
+     * CONNECTION_DRAINING message arrived on. This drains the connection currently chosen for sending.
+     */
+    @Deprecated
     public void setDraining() {
-        try {
-            if (secondaryConnection == null || !secondaryConnection.isConnected()) {
-                secondaryConnecting = true;
-
-                for (int i = 0; i < 10; i++) {
-                    secondaryConnection = connect();
-                    addPacketListener(secondaryConnection);
-                    auth(secondaryConnection);
-
-                    if (secondaryConnection.isConnected()) {
-                        break;
-                    } else {
-                        secondaryConnection.disconnect();
-                    }
-                }
+        setDraining(null);
+    }
 
-                secondaryConnecting = false;
+    /**
+     * Marks the connection as draining and opens a replacement. A null connection drains the connection currently
+     * chosen for sending.
+     */
+    public void setDraining(Connection connection) {
+        CcsConnection sendingConnection = connection == null ? getSendingConnection() : null;
+
+        connections.stream()
+                .filter(ccsConnection -> connection == null ?
+                        ccsConnection == sendingConnection : ccsConnection.getConnection() == connection)
+                .findFirst()
+                .ifPresent(ccsConnection -> {
+                    ccsConnection.setDraining();
+
+                    logger.info("Draining " + ccsConnection + ", replacing it in the pool...");
+                });
+
+        vertx.executeBlocking(fut -> {
+            fillConnectionPool();
+
+            fut.complete();
+        }, false, res -> {
+            if (res.failed()) {
+                logger.error("Could not replace draining connection!", res.cause());
             }
+        });
+    }
+
+    CcsConnection getSendingConnection() {
+        CcsConnection leastLoaded = null;
+        CcsConnection drainingFallback = null;
+
+        for (CcsConnection connection : connections) {
+            if (!connection.isConnected() || !connection.hasCredit()) continue;
 
-            primaryIsDraining = true;
-        } catch (XMPPException e) {
-            logger.error("Could not connect secondary on draining!");
+            if (connection.isDraining()) {
+                if (drainingFallback == null) drainingFallback = connection;
+            } else if (leastLoaded == null || connection.getPendingCount() < leastLoaded.getPendingCount()) {
+                leastLoaded = connection;
+            }
         }
+
+        return leastLoaded != null ? leastLoaded : drainingFallback;
     }
 
-    Connection getSendingConnection() {
-        logger.info("GCM " +
-                (primaryIsDraining ? "is" : "is not") +
-                " draining primary connection" +
-                (primaryIsDraining ? "!" : "..."));
+    HttpClient getDeviceGroupClient() {
+        return deviceGroupClient;
+    }
 
-        if (primaryIsDraining) {
-            return secondaryConnection;
-        } else {
-            if (primaryConnection != null && primaryConnection.isConnected() &&
-                    secondaryConnection != null && secondaryConnection.isConnected()) {
-                primaryIsDraining = false;
-                secondaryConnection.disconnect();
-            }
+    public DeviceGroupManager getDeviceGroupManager() {
+        return deviceGroupManager;
+    }
 
-            return primaryConnection;
-        }
+    public JsonObject getFlowControlStats() {
+        JsonArray connectionStats = new JsonArray();
+        connections.forEach(connection -> connectionStats.add(connection.toJson()));
+
+        JsonObject stats = new JsonObject()
+                .put("queued", messageSender.getQueuedMessageCount())
+                .put("connections", connectionStats);
+
+        if (inboundDispatcher != null) stats.put("inbound", inboundDispatcher.toJson());
+
+        return stats;
+    }
+
+    /**
+     * Lifecycle latencies in milliseconds, NACKs per error code, retries and the current flow control state.
+     */
+    public JsonObject getMetrics() {
+        JsonObject metricsJson = metrics == null ? new JsonObject() : metrics.toJson();
+
+        return metricsJson.put("flowControl", getFlowControlStats());
+    }
+
+    MessageLog getMessageLog() {
+        return messageLog;
     }
 
     RedisClient getRedisClient() {
@@ -386,14 +821,6 @@ public class FcmServer extends AbstractVerticle {
     }
 
     public boolean isOnline() {
-        if (primaryConnection != null) {
-            return primaryConnection.isConnected() &&
-                    primaryConnection.isAuthenticated();
-        }
-
-        return secondaryConnection != null &&
-                secondaryConnection.isConnected() &&
-                secondaryConnection.isAuthenticated();
-
+        return connections.stream().anyMatch(CcsConnection::isConnected);
     }
 }
@@ -0,0 +1,200 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Anders Mikkelsen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.nannoq.tools.fcm.server;
+
+import io.vertx.core.Context;
+import io.vertx.core.WorkerExecutor;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class moves inbound stanza handling off the Smack packet reader thread. ACKs, NACKs, receipts and control
+ * messages run on the event loop of the FcmServer, and run on the reader thread when their stage is full so a backlog
+ * slows down reading instead of growing without bounds. Upstream data messages run on a worker pool, ordered per
+ * sender, and are refused when their stage is full so CCS redelivers them later.
+ *
+ * @author Anders Mikkelsen
+ * @version 31.03.2016
+ */
+class InboundDispatcher {
+    private static final Logger logger = LoggerFactory.getLogger(InboundDispatcher.class.getSimpleName());
+
+    static final int DEFAULT_CONTROL_CAPACITY = 10000;
+    static final int DEFAULT_DATA_CAPACITY = 10000;
+    static final int DEFAULT_WORKER_POOL_SIZE = 20;
+
+    // tasks a worker runs for one sender before yielding to other senders
+    private static final int MAX_TASKS_PER_DRAIN = 64;
+
+    private final Context context;
+    private final WorkerExecutor workerExecutor;
+    private final int controlCapacity;
+    private final int dataCapacity;
+    private final Map<String, Deque<Runnable>> senderQueues = new HashMap<>();
+
+    private final StageMetrics controlStage = new StageMetrics();
+    private final StageMetrics dataStage = new StageMetrics();
+
+    InboundDispatcher(Context context, WorkerExecutor workerExecutor, int controlCapacity, int dataCapacity) {
+        this.context = context;
+        this.workerExecutor = workerExecutor;
+        this.controlCapacity = controlCapacity;
+        this.dataCapacity = dataCapacity;
+    }
+
+    void dispatchControl(Runnable task) {
+        if (!controlStage.tryEnter(controlCapacity)) {
+            controlStage.rejected.incrementAndGet();
+
+            run(task);
+            controlStage.completed.incrementAndGet();
+        } else {
+            context.runOnContext(v -> {
+                run(task);
+                controlStage.exit();
+            });
+        }
+    }
+
+    /**
+     * @return false if the data stage is full and the message was not accepted
+     */
+    boolean dispatchData(String from, Runnable task) {
+        if (!dataStage.tryEnter(dataCapacity)) {
+            dataStage.rejected.incrementAndGet();
+
+            return false;
+        }
+
+        String senderKey = from == null ? "" : from;
+        boolean startDrain;
+
+        synchronized (senderQueues) {
+            Deque<Runnable> queue = senderQueues.get(senderKey);
+            startDrain = queue == null;
+
+            if (startDrain) {
+                queue = new ArrayDeque<>();
+                senderQueues.put(senderKey, queue);
+            }
+
+            queue.add(task);
+        }
+
+        if (startDrain) scheduleDrain(senderKey);
+
+        return true;
+    }
+
+    private void scheduleDrain(String senderKey) {
+        workerExecutor.executeBlocking(fut -> {
+            drain(senderKey);
+
+            fut.complete();
+        }, false, null);
+    }
+
+    private void drain(String senderKey) {
+        for (int i = 0; i < MAX_TASKS_PER_DRAIN; i++) {
+            Runnable task;
+
+            synchronized (senderQueues) {
+                Deque<Runnable> queue = senderQueues.get(senderKey);
+                task = queue.poll();
+
+                if (task == null) {
+                    senderQueues.remove(senderKey);
+
+                    return;
+                }
+            }
+
+            run(task);
+            dataStage.exit();
+        }
+
+        scheduleDrain(senderKey);
+    }
+
+    private void run(Runnable task) {
+        try {
+            task.run();
+        } catch (Exception e) {
+            logger.error("Inbound stanza handling failed...", e);
+        }
+    }
+
+    JsonObject toJson() {
+        return new JsonObject()
+                .put("control", controlStage.toJson())
+                .put("data", dataStage.toJson());
+    }
+
+    private static class StageMetrics {
+        private final AtomicInteger depth = new AtomicInteger();
+        private final AtomicInteger maxDepth = new AtomicInteger();
+        private final AtomicLong submitted = new AtomicLong();
+        private final AtomicLong completed = new AtomicLong();
+        private final AtomicLong rejected = new AtomicLong();
+
+        private boolean tryEnter(int capacity) {
+            submitted.incrementAndGet();
+            int current = depth.incrementAndGet();
+
+            if (current > capacity) {
+                depth.decrementAndGet();
+
+                return false;
+            }
+
+            maxDepth.accumulateAndGet(current, Math::max);
+
+            return true;
+        }
+
+        private void exit() {
+            depth.decrementAndGet();
+            completed.incrementAndGet();
+        }
+
+        private JsonObject toJson() {
+            return new JsonObject()
+                    .put("depth", depth.get())
+                    .put("maxDepth", maxDepth.get())
+                    .put("submitted", submitted.get())
+                    .put("completed", completed.get())
+                    .put("rejected", rejected.get());
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Anders Mikkelsen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.nannoq.tools.fcm.server;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class keeps the device token buckets in memory, limiting each node on its own. Buckets are spread over
+ * striped maps so concurrent senders rarely contend on the same lock, and a periodic sweep drops the buckets that
+ * have refilled completely. A bucket is two primitives, a token count that goes negative for deferred messages and
+ * the time it was last updated.
+ *
+ * @author Anders Mikkelsen
+ * @version 31.03.2016
+ */
+class LocalDeviceRateLimiter implements DeviceRateLimiter {
+    private static final int STRIPES = 64;
+    private static final long EVICTION_INTERVAL = 60000L;
+
+    private final Vertx vertx;
+    private final double burst;
+    private final double tokensPerMilli;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final long evictionTimer;
+
+    LocalDeviceRateLimiter(Vertx vertx, int burst, long ratePerHour) {
+        this.vertx = vertx;
+        this.burst = burst;
+        this.tokensPerMilli = ratePerHour / (double) TimeUnit.HOURS.toMillis(1);
+
+        for (int i = 0; i < STRIPES; i++) stripes[i] = new Stripe();
+
+        this.evictionTimer = vertx.setPeriodic(EVICTION_INTERVAL, timerId -> evictRefilled());
+    }
+
+    @Override
+    public void acquire(String to, long maxDelay, Handler<AsyncResult<Long>> delayHandler) {
+        delayHandler.handle(Future.succeededFuture(acquire(to, maxDelay, now())));
+    }
+
+    private long acquire(String to, long maxDelay, long now) {
+        Stripe stripe = stripeOf(to);
+
+        synchronized (stripe) {
+            Bucket bucket = stripe.buckets.get(to);
+            double tokens = bucket == null ? burst : refill(bucket, now);
+            long delay = tokens >= 1.0 ? 0L : (long) Math.ceil((1.0 - tokens) / tokensPerMilli);
+
+            if (delay > maxDelay) return -1L;
+
+            if (bucket == null) {
+                bucket = new Bucket();
+                stripe.buckets.put(to, bucket);
+            }
+
+            bucket.tokens = tokens - 1.0;
+            bucket.updatedAt = now;
+
+            return delay;
+        }
+    }
+
+    @Override
+    public void penalize(String to) {
+        long now = now();
+        Stripe stripe = stripeOf(to);
+
+        synchronized (stripe) {
+            Bucket bucket = stripe.buckets.get(to);
+            double tokens = bucket == null ? burst : refill(bucket, now);
+
+            if (bucket == null) {
+                bucket = new Bucket();
+                stripe.buckets.put(to, bucket);
+            }
+
+            bucket.tokens = Math.min(tokens, 0.0);
+            bucket.updatedAt = now;
+        }
+    }
+
+    @Override
+    public void close() {
+        vertx.cancelTimer(evictionTimer);
+    }
+
+    private void evictRefilled() {
+        long now = now();
+
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.buckets.values().removeIf(bucket -> refill(bucket, now) >= burst);
+            }
+        }
+    }
+
+    private double refill(Bucket bucket, long now) {
+        return Math.min(burst, bucket.tokens + Math.max(0L, now - bucket.updatedAt) * tokensPerMilli);
+    }
+
+    private Stripe stripeOf(String to) {
+        int hash = to.hashCode();
+
+        return stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    private static class Stripe {
+        private final Map<String, Bucket> buckets = new HashMap<>();
+    }
+
+    private static class Bucket {
+        private double tokens;
+        private long updatedAt;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Anders Mikkelsen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.nannoq.tools.fcm.server;
+
+import io.vertx.core.logging.Logger;
+
+/**
+ * This class writes the per message debug logs of the hot path as structured key=value lines. Lines are sampled by
+ * message id, so either every line for a message is written or none are, and nothing is formatted unless debug is
+ * enabled and the message is sampled.
+ *
+ * @author Anders Mikkelsen
+ * @version 31.03.2016
+ */
+class MessageLog {
+    static final double DEFAULT_SAMPLE_RATE = 1.0;
+
+    private static final int SAMPLE_BUCKETS = 10000;
+
+    private final int sampledBuckets;
+
+    MessageLog(double sampleRate) {
+        this.sampledBuckets = (int) Math.round(sampleRate * SAMPLE_BUCKETS);
+    }
+
+    boolean isLogged(Logger logger, String messageId) {
+        return logger.isDebugEnabled() && isSampled(messageId);
+    }
+
+    void debug(Logger logger, String event, String messageId) {
+        if (isLogged(logger, messageId)) logger.debug(start(event, messageId).toString());
+    }
+
+    void debug(Logger logger, String event, String messageId, String key, Object value) {
+        if (isLogged(logger, messageId)) logger.debug(append(start(event, messageId), key, value).toString());
+    }
+
+    void debug(Logger logger, String event, String messageId, String key, Object value,
+               String secondKey, Object secondValue) {
+        if (isLogged(logger, messageId)) {
+            logger.debug(append(append(start(event, messageId), key, value), secondKey, secondValue).toString());
+        }
+    }
+
+    private boolean isSampled(String messageId) {
+        if (sampledBuckets >= SAMPLE_BUCKETS) return true;
+        if (sampledBuckets <= 0 || messageId == null) return false;
+
+        return (messageId.hashCode() & Integer.MAX_VALUE) % SAMPLE_BUCKETS < sampledBuckets;
+    }
+
+    private static StringBuilder start(String event, String messageId) {
+        return new StringBuilder(128).append("event=").append(event).append(" messageId=").append(messageId);
+    }
+
+    private static StringBuilder append(StringBuilder line, String key, Object value) {
+        return line.append(' ').append(key).append('=').append(value);
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Anders Mikkelsen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.nannoq.tools.fcm.server;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Handler;
+
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/**
+ * This interface defines the redis outbox holding messages until CCS has acknowledged them.
+ *
+ * @author Anders Mikkelsen
+ * @version 31.03.2016
+ */
+interface MessageOutbox {
+    String RETRY_COUNT_SUFFIX = "_retry_count";
+
+    void start(Handler<AsyncResult<Void>> startHandler);
+
+    void store(String messageId, String json, Handler<AsyncResult<Integer>> attemptHandler);
+
+    void fetch(String messageId, Handler<AsyncResult<String>> resultHandler);
+
+    void remove(String messageId, Handler<AsyncResult<Void>> resultHandler);
+
+    /**
+     * Reads messages left behind by crashed or restarted nodes one page at a time. The page handler must call the
+     * supplied handler when it is ready for the next page, the done handler receives the amount of recovered messages.
+     */
+    void recover(int pageSize, BiConsumer<List<OutboxEntry>, Handler<Void>> pageHandler,
+                 Handler<AsyncResult<Long>> doneHandler);
+
+    void close();
+}
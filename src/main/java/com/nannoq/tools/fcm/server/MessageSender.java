@@ -25,22 +25,29 @@
 
 package com.nannoq.tools.fcm.server;
 
+import com.nannoq.tools.fcm.server.messageutils.CcsStanzaHeader;
 import com.nannoq.tools.fcm.server.messageutils.FcmNotification;
+import com.nannoq.tools.fcm.server.messageutils.FcmNotificationTemplate;
 import com.nannoq.tools.fcm.server.messageutils.FcmPacketExtension;
-import com.nannoq.tools.repository.repository.redis.RedisUtils;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.CompositeFuture;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
 import io.vertx.core.json.Json;
 import io.vertx.core.json.JsonObject;
 import io.vertx.core.logging.Logger;
 import io.vertx.core.logging.LoggerFactory;
-import io.vertx.redis.RedisClient;
 import org.jivesoftware.smack.packet.Packet;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.function.Consumer;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static com.nannoq.tools.fcm.server.XMPPPacketListener.*;
 import static com.nannoq.tools.fcm.server.data.DataMessageHandler.REGISTER_DEVICE;
@@ -73,8 +80,8 @@ public class MessageSender {
     // device group values
     private static final String GCM_DEVICE_GROUP_OPERATION_NOTATION = "operation";
     private static final String GCM_DEVICE_GROUP_CREATE_GROUP_NOTATION = "create";
-    private static final String GCM_DEVICE_GROUP_ADD_ACTION_NOTATION = "add";
-    private static final String GCM_DEVICE_GROUP_REMOVE_ACTION_NOTATION = "remove";
+    static final String GCM_DEVICE_GROUP_ADD_ACTION_NOTATION = "add";
+    static final String GCM_DEVICE_GROUP_REMOVE_ACTION_NOTATION = "remove";
     private static final String GCM_DEVICE_NOTIFICATION_KEY_NAME_NOTATION = "notification_key_name";
     private static final String GCM_DEVICE_NOTIFICATION_KEY_NOTATION = "notification_key";
     private static final String GCM_PACKET_NOTIFICATION_SOUND_NOTATION = "sound";
@@ -84,27 +91,83 @@ public class MessageSender {
 
     // redis message hash
     static final String REDIS_MESSAGE_HASH = "MESSAGE_QUEUE";
+    private static final int RECOVERY_PAGE_SIZE = 100;
+    static final long DEFAULT_RECOVERY_PAGE_DELAY = 250L;
+
+    private static final String TOPIC_PREFIX = "/topics/";
+
+    // fcm keeps messages without a time_to_live for four weeks
+    private static final long FCM_DEFAULT_TIME_TO_LIVE = 2419200L;
+
     private final FcmServer server;
-    private RedisClient redisClient;
-    private final ExecutorService delayedSendingService;
+    private MessageOutbox outbox;
+    private RetryScheduler retryScheduler;
+    private DeliveryTracker deliveryTracker;
+    private DeviceRateLimiter deviceRateLimiter;
+    private long maxRateDelay = RetryScheduler.DEFAULT_MAX_DELAY;
+    private CollapseKeyCoalescer coalescer;
+    private FcmMetrics metrics = new FcmMetrics(FcmMetrics.DEFAULT_TRACKED_MESSAGES);
+    private MessageLog messageLog = new MessageLog(MessageLog.DEFAULT_SAMPLE_RATE);
+    private final AtomicBoolean recovering = new AtomicBoolean();
+    private long recoveryPageDelay = DEFAULT_RECOVERY_PAGE_DELAY;
+
+    // messages waiting for a connection with a free slot in its in-flight window
+    private final Deque<QueuedPacket> queuedPackets = new ArrayDeque<>();
+    private int maxQueuedMessages = Integer.MAX_VALUE;
 
     MessageSender(FcmServer server) {
         this.server = server;
-        delayedSendingService = Executors.newCachedThreadPool();
+        retryScheduler = new RetryScheduler();
+    }
+
+    void setOutbox(MessageOutbox outbox) {
+        this.outbox = outbox;
+    }
+
+    void setRetryScheduler(RetryScheduler retryScheduler) {
+        this.retryScheduler = retryScheduler;
+    }
+
+    void setDeliveryTracker(DeliveryTracker deliveryTracker) {
+        this.deliveryTracker = deliveryTracker;
+    }
+
+    /**
+     * Messages a device has no token for within the max delay are held, and ask for a token again after that delay.
+     */
+    void setDeviceRateLimiter(DeviceRateLimiter deviceRateLimiter, long maxRateDelay) {
+        this.deviceRateLimiter = deviceRateLimiter;
+        this.maxRateDelay = maxRateDelay;
+    }
+
+    void setCoalescer(CollapseKeyCoalescer coalescer) {
+        this.coalescer = coalescer;
+    }
+
+    void setMetrics(FcmMetrics metrics) {
+        this.metrics = metrics;
     }
 
-    void setRedisClient(RedisClient redisClient) {
-        this.redisClient = redisClient;
+    void setMessageLog(MessageLog messageLog) {
+        this.messageLog = messageLog;
+    }
+
+    void setMaxQueuedMessages(int maxQueuedMessages) {
+        this.maxQueuedMessages = maxQueuedMessages;
+    }
+
+    void setRecoveryPageDelay(long recoveryPageDelay) {
+        this.recoveryPageDelay = recoveryPageDelay;
     }
 
     public static JsonObject createJsonAck(String from, String messageId) {
-        logger.info("Responding with ack to: " + from + " based on " + messageId);
+        if (logger.isDebugEnabled()) logger.debug("event=ack messageId=" + messageId + " to=" + from);
 
         return prepareJsonAckNack(from, messageId, GCM_PACKET_ACK_MESSAGE_NOTATION);
     }
 
     public static JsonObject createJsonNack(String from, String messageId) {
-        logger.info("Responding with nack to: " + from + " based on " + messageId);
+        if (logger.isDebugEnabled()) logger.debug("event=nack messageId=" + messageId + " to=" + from);
 
         return prepareJsonAckNack(from, messageId, GCM_PACKET_NACK_MESSAGE_NOTATION);
     }
@@ -119,6 +182,19 @@ public class MessageSender {
         JsonObject message = new JsonObject();
         message.put(GCM_PACKET_TO_NOTATION, to);
         message.put(GCM_PACKET_MESSAGE_ID_NOTATION, UUID.randomUUID().toString());
+
+        return message.mergeIn(createNotificationBody(appPackageName, customNotification, dryRun));
+    }
+
+    public static FcmNotificationTemplate createNotificationTemplate(String appPackageName,
+                                                                     FcmNotification customNotification,
+                                                                     boolean dryRun) {
+        return new FcmNotificationTemplate(createNotificationBody(appPackageName, customNotification, dryRun));
+    }
+
+    private static JsonObject createNotificationBody(String appPackageName, FcmNotification customNotification,
+                                                     boolean dryRun) {
+        JsonObject message = new JsonObject();
         message.put(GCM_PACKET_CONTENT_AVAILABLE_NOTATION,
                 customNotification.getData() != null && customNotification.getData().size() > 0);
         message.put(GCM_PACKET_PRIORITY_NOTATION, customNotification.getPriority() != null ?
@@ -127,6 +203,7 @@ public class MessageSender {
         Map<String, String> notification = customNotification.getNotification();
 
         if (notification != null) {
+            notification = new HashMap<>(notification);
             notification.put(GCM_PACKET_NOTIFICATION_SOUND_NOTATION, GCM_PACKET_NOTIFICATION_SOUND_DEFAULT);
         }
 
@@ -151,24 +228,28 @@ public class MessageSender {
     }
 
     public static JsonObject createAddDeviceGroupJson(String gcmId, String notificationKeyName, String key) {
-        JsonObject message = buildDeviceGroupOperator(gcmId, notificationKeyName, key);
-        message.put(GCM_DEVICE_GROUP_OPERATION_NOTATION, GCM_DEVICE_GROUP_ADD_ACTION_NOTATION);
-
-        return createJsonMessage(message);
+        return createDeviceGroupOperationJson(GCM_DEVICE_GROUP_ADD_ACTION_NOTATION,
+                Collections.singletonList(gcmId), notificationKeyName, key);
     }
 
     public static JsonObject createRemoveDeviceGroupJson(String gcmId, String notificationKeyName, String key) {
-        JsonObject message = buildDeviceGroupOperator(gcmId, notificationKeyName, key);
-        message.put(GCM_DEVICE_GROUP_OPERATION_NOTATION, GCM_DEVICE_GROUP_REMOVE_ACTION_NOTATION);
+        return createDeviceGroupOperationJson(GCM_DEVICE_GROUP_REMOVE_ACTION_NOTATION,
+                Collections.singletonList(gcmId), notificationKeyName, key);
+    }
+
+    static JsonObject createDeviceGroupOperationJson(String operation, List<String> gcmIds,
+                                                     String notificationKeyName, String key) {
+        JsonObject message = buildDeviceGroupOperator(gcmIds, notificationKeyName, key);
+        message.put(GCM_DEVICE_GROUP_OPERATION_NOTATION, operation);
 
         return createJsonMessage(message);
     }
 
-    private static JsonObject buildDeviceGroupOperator(String gcmId, String notificationKeyName, String key) {
+    private static JsonObject buildDeviceGroupOperator(List<String> gcmIds, String notificationKeyName, String key) {
         JsonObject message = new JsonObject();
         message.put(GCM_DEVICE_NOTIFICATION_KEY_NAME_NOTATION, notificationKeyName);
         message.put(GCM_DEVICE_NOTIFICATION_KEY_NOTATION, key);
-        message.put(GCM_DEVICE_REG_IDS_NOTATION, Collections.singletonList(gcmId));
+        message.put(GCM_DEVICE_REG_IDS_NOTATION, gcmIds);
 
         return message;
     }
@@ -185,57 +266,365 @@ public class MessageSender {
     void send(JsonObject json) {
         String messageId = json.getString(GCM_PACKET_MESSAGE_ID_NOTATION);
 
-        send(messageId, Json.encode(json));
+        send(messageId, json.getString(GCM_PACKET_TO_NOTATION), json.getString(GCM_PACKET_COLLAPSE_KEY_NOTATION),
+                Json.encode(json), null);
     }
 
-    void send(String messageId, String jsonValue) {
-        String retryKey = messageId + "_retry_count";
+    String newMessageId() {
+        return UUID.randomUUID().toString();
+    }
+
+    void send(FcmNotificationTemplate template, String to) {
+        String messageId = newMessageId();
 
-        Consumer<RedisClient> sender = redis -> redis.hset(REDIS_MESSAGE_HASH, messageId, jsonValue, hSetResult -> {
-            if (hSetResult.failed()) {
-                logger.error("HSET Failed for id:" + messageId);
+        send(messageId, to, template.getCollapseKey(), template.render(to, messageId), null);
+    }
+
+    /**
+     * The handler receives the message id once the message is stored in the outbox, from where it is delivered.
+     */
+    void submit(String messageId, String to, String collapseKey, String jsonValue,
+                Handler<AsyncResult<String>> acceptedHandler) {
+        send(messageId, to, collapseKey, jsonValue, storedResult -> {
+            if (storedResult.succeeded()) {
+                acceptedHandler.handle(Future.succeededFuture(messageId));
+            } else {
+                acceptedHandler.handle(Future.failedFuture(storedResult.cause()));
             }
+        });
+    }
+
+    /**
+     * The handler receives the ACK from CCS, or fails on a NACK that is not retried or when no answer arrives
+     * within the delivery timeout. Retried and collapsed messages keep the handler waiting.
+     */
+    void deliver(String messageId, String to, String collapseKey, String jsonValue,
+                 Handler<AsyncResult<JsonObject>> deliveryHandler) {
+        deliveryTracker.track(messageId, deliveryHandler);
+
+        send(messageId, to, collapseKey, jsonValue, null);
+    }
+
+    void acknowledged(String messageId, CcsStanzaHeader ack) {
+        metrics.acknowledged(messageId);
+
+        if (deliveryTracker != null) deliveryTracker.acknowledged(messageId, ack);
+    }
+
+    void nacked(String messageId, String errorCode) {
+        metrics.nacked(messageId, errorCode);
+    }
+
+    void delivered(String messageId) {
+        metrics.delivered(messageId);
+    }
+
+    /**
+     * Resends a message CCS rejected for exceeding the device message rate, after emptying the bucket of the device.
+     */
+    void throttled(String messageId, String to) {
+        if (deviceRateLimiter != null && to != null) deviceRateLimiter.penalize(to);
+
+        resend(messageId);
+    }
+
+    void rejected(String messageId, String errorCode, String errorDescription) {
+        if (deliveryTracker != null) {
+            deliveryTracker.rejected(messageId, new FcmNackException(messageId, errorCode, errorDescription));
+        }
+    }
+
+    // the recipient and collapse key of stored messages are only read back from their json when they are needed
+    private void sendStored(String messageId, String jsonValue, Handler<AsyncResult<Void>> storedHandler) {
+        JsonObject json = deviceRateLimiter != null || coalescer != null ? readJson(messageId, jsonValue) : null;
+
+        if (json == null) {
+            send(messageId, null, null, jsonValue, storedHandler);
+        } else {
+            send(messageId, json.getString(GCM_PACKET_TO_NOTATION), json.getString(GCM_PACKET_COLLAPSE_KEY_NOTATION),
+                    jsonValue, storedHandler);
+        }
+    }
+
+    private void send(String messageId, String to, String collapseKey, String jsonValue,
+                      Handler<AsyncResult<Void>> storedHandler) {
+        long storeStart = System.nanoTime();
+        metrics.enqueued(messageId);
+
+        outbox.store(messageId, jsonValue, storeResult -> {
+            metrics.redisOperation(storeStart);
 
             FcmPacketExtension extension = new FcmPacketExtension(jsonValue);
             Packet request = extension.toPacket();
 
-            redis.get(retryKey, getResult -> {
-                if (getResult.failed()) {
-                    logger.error("SET Failed for id: " + messageId);
+            if (storedHandler != null) {
+                storedHandler.handle(storeResult.succeeded() ?
+                        Future.succeededFuture() : Future.failedFuture(storeResult.cause()));
+            }
+
+            if (storeResult.failed()) {
+                logger.error("Could not store message in redis, sending without retry for id: " + messageId);
+
+                sendPacket(messageId, null, request);
+            } else {
+                int attempt = storeResult.result();
+                String waitingKey = coalescer == null ? null : CollapseKeyCoalescer.keyOf(to, collapseKey);
+
+                if (attempt > 1) metrics.retried();
+                if (waitingKey != null && !await(waitingKey, messageId, attempt)) return;
+
+                sendWithinDeviceRate(messageId, to, waitingKey, attempt, extension, request);
+            }
+        });
+    }
+
+    /**
+     * A message the device has no token for within the max rate delay is held, and asks for a token again once that
+     * delay has passed. It stays waiting meanwhile, so a newer message for the same collapse key replaces it.
+     */
+    private void sendWithinDeviceRate(String messageId, String to, String waitingKey, int attempt,
+                                      FcmPacketExtension extension, Packet request) {
+        acquireDeviceRate(messageId, to, rateDelay -> {
+            if (rateDelay < 0L) {
+                metrics.rateLimited(true);
+                messageLog.debug(logger, "held", messageId);
+
+                server.getVertx().setTimer(maxRateDelay, timerId -> {
+                    if (waitingKey != null && !coalescer.isWaiting(waitingKey, messageId)) return;
+
+                    sendWithinDeviceRate(messageId, to, waitingKey, attempt, extension, request);
+                });
+            } else {
+                if (rateDelay > 0L) metrics.rateLimited(false);
+
+                retryScheduler.schedule(server.getVertx(), attempt, rateDelay, () -> {
+                    if (waitingKey != null && !coalescer.isWaiting(waitingKey, messageId)) return;
+
+                    messageLog.debug(logger, "send", messageId, "attempt", attempt, "json", extension.getJson());
+
+                    sendPacket(messageId, waitingKey, request);
+                });
+            }
+        });
+    }
+
+    /**
+     * A new message replaces the message waiting for the same device and collapse key, while a resent message is
+     * collapsed into the waiting one.
+     *
+     * @return false when the message was collapsed and is not to be sent
+     */
+    private boolean await(String waitingKey, String messageId, int attempt) {
+        if (attempt > 1) {
+            String waitingId = coalescer.join(waitingKey, messageId);
+
+            // a held message recovered from the outbox is already waiting for its next token
+            if (messageId.equals(waitingId)) return false;
+
+            if (waitingId != null) {
+                collapse(messageId, waitingId);
+
+                return false;
+            }
+        } else {
+            String replacedId = coalescer.replace(waitingKey, messageId);
 
-                    server.getSendingConnection().sendPacket(request);
+            if (replacedId != null) collapse(replacedId, messageId);
+        }
+
+        return true;
+    }
+
+    private void collapse(String messageId, String replacementId) {
+        messageLog.debug(logger, "collapsed", messageId, "into", replacementId);
+
+        metrics.collapsed(messageId);
+        if (deliveryTracker != null) deliveryTracker.collapsed(messageId, replacementId);
+        purge(messageId);
+    }
+
+    private void acquireDeviceRate(String messageId, String to, Handler<Long> delayHandler) {
+        if (deviceRateLimiter == null || to == null || to.startsWith(TOPIC_PREFIX)) {
+            delayHandler.handle(0L);
+        } else {
+            deviceRateLimiter.acquire(to, maxRateDelay, delayResult -> {
+                if (delayResult.failed()) {
+                    logger.error("Could not check device rate, sending without limit for id: " + messageId,
+                            delayResult.cause());
+
+                    delayHandler.handle(0L);
                 } else {
-                    String getResultAsString = getResult.result();
+                    delayHandler.handle(delayResult.result());
+                }
+            });
+        }
+    }
+
+    private JsonObject readJson(String messageId, String jsonValue) {
+        try {
+            return new JsonObject(jsonValue);
+        } catch (Exception e) {
+            logger.error("Could not read json for: " + messageId, e);
 
-                    int retryCountAsInt = getResultAsString == null ?
-                            1 : Integer.parseInt(getResultAsString);
+            return null;
+        }
+    }
 
-                    delayedSendingService.execute(() -> {
-                        try {
-                            Thread.sleep(retryCountAsInt * 2 * 1000);
-                        } catch (InterruptedException e) {
-                            logger.fatal("Could not delay sending of: " + messageId);
-                        }
+    void recover() {
+        if (!recovering.compareAndSet(false, true)) return;
 
-                        logger.info("Sending Extension to GCM (JSON): " + extension.getJson());
-                        logger.info("Sending Extension to GCM (XML): " + extension.toXML());
-                        logger.info("Sending Packet to GCM (XMLNS): " + request.getXmlns());
+        long now = System.currentTimeMillis();
 
-                        server.getSendingConnection().sendPacket(request);
-                    });
+        outbox.recover(RECOVERY_PAGE_SIZE, (entries, next) -> {
+            List<Future<Void>> stored = new ArrayList<>(entries.size());
 
-                    String retryCount = "" + retryCountAsInt + 1;
+            entries.forEach(entry -> {
+                if (isExpired(entry, now)) {
+                    logger.info("Message expired while unacknowledged, dropping: " + entry.getMessageId());
 
-                    redis.set(retryKey, retryCount, reSetResult -> {
-                        if (reSetResult.failed()) {
-                            logger.error("Re set of retry failed for " + messageId);
-                        }
-                    });
+                    purge(entry.getMessageId());
+                } else {
+                    Future<Void> storedFuture = Future.future();
+                    sendStored(entry.getMessageId(), entry.getJson(), storedFuture.completer());
+                    stored.add(storedFuture);
                 }
             });
+
+            // copied as CompositeFuture takes a raw list of futures
+            CompositeFuture.join(new ArrayList<>(stored)).setHandler(storedResult -> awaitQueueCapacity(next));
+        }, recoveryResult -> {
+            recovering.set(false);
+
+            if (recoveryResult.failed()) {
+                logger.error("Outbox recovery failed...", recoveryResult.cause());
+            } else if (recoveryResult.result() > 0) {
+                logger.info("Recovered " + recoveryResult.result() + " unacknowledged messages from redis...");
+            }
+        });
+    }
+
+    private boolean isExpired(OutboxEntry entry, long now) {
+        try {
+            Long timeToLive = new JsonObject(entry.getJson()).getLong(GCM_PACKET_TIME_TO_LIVE_NOTATION);
+            long ttl = timeToLive == null ? FCM_DEFAULT_TIME_TO_LIVE : timeToLive;
+
+            return entry.getEnqueuedAt() + ttl * 1000L < now;
+        } catch (Exception e) {
+            logger.error("Could not read time to live for: " + entry.getMessageId(), e);
+
+            return false;
+        }
+    }
+
+    // recovered pages are paced so a large outbox does not crowd out live traffic in the send queue
+    private void awaitQueueCapacity(Handler<Void> next) {
+        server.getVertx().setTimer(recoveryPageDelay, timerId -> {
+            if (isQueueSaturated()) {
+                awaitQueueCapacity(next);
+            } else {
+                next.handle(null);
+            }
+        });
+    }
+
+    void fetch(String messageId, Handler<AsyncResult<String>> resultHandler) {
+        long fetchStart = System.nanoTime();
+
+        outbox.fetch(messageId, result -> {
+            metrics.redisOperation(fetchStart);
+
+            resultHandler.handle(result);
         });
+    }
 
-        RedisUtils.performJedisWithRetry(redisClient, sender);
+    void resend(String messageId) {
+        fetch(messageId, result -> {
+            if (result.failed()) {
+                logger.error("Unable to get map for message...");
+            } else if (result.result() == null) {
+                logger.info("Message already purged from redis, not resending: " + messageId);
+            } else {
+                sendStored(messageId, result.result(), null);
+            }
+        });
+    }
+
+    void purge(String messageId) {
+        long removeStart = System.nanoTime();
+
+        outbox.remove(messageId, removeResult -> {
+            metrics.redisOperation(removeStart);
+
+            if (removeResult.failed()) {
+                logger.error("Could not purge message from redis: " + messageId, removeResult.cause());
+            } else {
+                messageLog.debug(logger, "purged", messageId);
+            }
+        });
+    }
+
+    void sendAck(CcsConnection connection, JsonObject json) {
+        FcmPacketExtension extension = new FcmPacketExtension(Json.encode(json));
+
+        connection.sendPacket(extension.toPacket());
+    }
+
+    private void sendPacket(String messageId, String waitingKey, Packet request) {
+        synchronized (queuedPackets) {
+            if (queuedPackets.size() >= maxQueuedMessages) {
+                logger.error("Send queue is full, leaving message in redis for later delivery: " + messageId);
+
+                if (waitingKey != null) coalescer.claim(waitingKey, messageId);
+
+                return;
+            }
+
+            queuedPackets.addLast(new QueuedPacket(messageId, waitingKey, request));
+        }
+
+        drainQueue();
+    }
+
+    void drainQueue() {
+        synchronized (queuedPackets) {
+            QueuedPacket next;
+
+            while ((next = queuedPackets.peekFirst()) != null) {
+                if (next.waitingKey != null && !coalescer.isWaiting(next.waitingKey, next.messageId)) {
+                    queuedPackets.pollFirst();
+
+                    continue;
+                }
+
+                CcsConnection connection = server.getSendingConnection();
+
+                if (connection == null || !connection.acquire(next.messageId)) break;
+
+                queuedPackets.pollFirst();
+
+                // replaced between the check above and claiming it
+                if (next.waitingKey != null && !coalescer.claim(next.waitingKey, next.messageId)) {
+                    connection.release(next.messageId);
+
+                    continue;
+                }
+
+                connection.sendPacket(next.packet);
+                metrics.sent(next.messageId);
+                messageLog.debug(logger, "written", next.messageId, "connection", connection.getId());
+            }
+        }
+    }
+
+    int getQueuedMessageCount() {
+        synchronized (queuedPackets) {
+            return queuedPackets.size();
+        }
+    }
+
+    // bulk producers hold back while the send queue is over half full, leaving the rest for live traffic
+    boolean isQueueSaturated() {
+        return getQueuedMessageCount() > maxQueuedMessages / 2;
     }
 
     @SuppressWarnings("unchecked")
@@ -252,7 +641,10 @@ public class MessageSender {
         JsonObject body = new JsonObject();
         body = addSuccessCreate(body);
 
-        send(createJsonMessage(gcmId, REGISTER_DEVICE, body, REGISTER_DEVICE, packageName));
+        String messageId = UUID.randomUUID().toString();
+
+        send(messageId, gcmId, REGISTER_DEVICE,
+                encodeJsonMessage(gcmId, REGISTER_DEVICE, messageId, body, REGISTER_DEVICE, packageName), null);
     }
 
     public void replyWithDeviceAlreadyExists(String packageName, String gcmId) {
@@ -262,7 +654,10 @@ public class MessageSender {
         body.put(MESSAGE_STATUS, FAILURE);
         body.put(STATUS_CODE, ALREADY_EXISTS);
 
-        send(createJsonMessage(gcmId, REGISTER_DEVICE, body, REGISTER_DEVICE, packageName));
+        String messageId = UUID.randomUUID().toString();
+
+        send(messageId, gcmId, REGISTER_DEVICE,
+                encodeJsonMessage(gcmId, REGISTER_DEVICE, messageId, body, REGISTER_DEVICE, packageName), null);
     }
 
     public void replyWithNewDeviceIdSet(String gcmId, String packageName) {
@@ -272,7 +667,10 @@ public class MessageSender {
         body.put(MESSAGE_STATUS, SUCCESS);
         body.put(STATUS_CODE, UPDATED);
 
-        send(createJsonMessage(gcmId, UPDATE_ID, body, UPDATE_ID, packageName));
+        String messageId = UUID.randomUUID().toString();
+
+        send(messageId, gcmId, UPDATE_ID, encodeJsonMessage(gcmId, UPDATE_ID, messageId, body, UPDATE_ID, packageName),
+                null);
     }
 
     private JsonObject addSuccessCreate(JsonObject message) {
@@ -281,4 +679,16 @@ public class MessageSender {
 
         return message;
     }
+
+    private static class QueuedPacket {
+        private final String messageId;
+        private final String waitingKey;
+        private final Packet packet;
+
+        private QueuedPacket(String messageId, String waitingKey, Packet packet) {
+            this.messageId = messageId;
+            this.waitingKey = waitingKey;
+            this.packet = packet;
+        }
+    }
 }
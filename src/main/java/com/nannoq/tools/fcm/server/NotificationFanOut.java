@@ -0,0 +1,312 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Anders Mikkelsen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.nannoq.tools.fcm.server;
+
+import com.nannoq.tools.fcm.server.messageutils.FcmNotificationTemplate;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+import io.vertx.core.streams.ReadStream;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * This class sends one notification template to a large set of recipients. It keeps a bounded amount of sends
+ * waiting for their answer from CCS, and pauses while the send queue is saturated, so memory stays flat for any
+ * amount of recipients. The connection pool spreads the resulting messages over its connections. Recipients can also be
+ * consumed from a ReadStream, which is paused while the window is full, and the outcome of each recipient is
+ * emitted on a ReadStream of its own.
+ *
+ * @author Anders Mikkelsen
+ * @version 31.03.2016
+ */
+class NotificationFanOut {
+    private static final Logger logger = LoggerFactory.getLogger(NotificationFanOut.class.getSimpleName());
+
+    static final int DEFAULT_MAX_OUTSTANDING = 1000;
+    private static final long SATURATED_QUEUE_DELAY = 100L;
+
+    private final Vertx vertx;
+    private final MessageSender sender;
+    private final int maxOutstanding;
+
+    NotificationFanOut(Vertx vertx, MessageSender sender, int maxOutstanding) {
+        this.vertx = vertx;
+        this.sender = sender;
+        this.maxOutstanding = maxOutstanding;
+    }
+
+    /**
+     * The result holds the amount of recipients CCS accepted with an ACK, and of those that failed on a NACK that is
+     * not retried or on the delivery timeout.
+     */
+    void send(FcmNotificationTemplate template, Iterator<String> recipients,
+              Handler<AsyncResult<JsonObject>> resultHandler) {
+        new FanOut(template, recipients, resultHandler).pump();
+    }
+
+    /**
+     * Outcomes hold the recipient under "to", the "messageId", and whether CCS "accepted" the message. Failed
+     * outcomes carry the failure under "error". The recipients stream is consumed once the outcome handler is set,
+     * and the outcomes end after the recipients stream ends or fails.
+     */
+    ReadStream<JsonObject> stream(FcmNotificationTemplate template, ReadStream<String> recipients) {
+        return new StreamFanOut(template, recipients);
+    }
+
+    private class FanOut {
+        private final FcmNotificationTemplate template;
+        private final Iterator<String> recipients;
+        private final Handler<AsyncResult<JsonObject>> resultHandler;
+
+        private int outstanding;
+        private long accepted;
+        private long failed;
+        private boolean waiting;
+        private boolean completed;
+
+        private FanOut(FcmNotificationTemplate template, Iterator<String> recipients,
+                       Handler<AsyncResult<JsonObject>> resultHandler) {
+            this.template = template;
+            this.recipients = recipients;
+            this.resultHandler = resultHandler;
+        }
+
+        private synchronized void pump() {
+            while (!waiting && outstanding < maxOutstanding && recipients.hasNext()) {
+                if (sender.isQueueSaturated()) {
+                    waiting = true;
+
+                    vertx.setTimer(SATURATED_QUEUE_DELAY, timerId -> resume());
+                } else {
+                    String to = recipients.next();
+                    String messageId = sender.newMessageId();
+                    outstanding++;
+
+                    sender.deliver(messageId, to, template.getCollapseKey(), template.render(to, messageId),
+                            this::delivered);
+                }
+            }
+
+            if (!completed && outstanding == 0 && !recipients.hasNext()) {
+                completed = true;
+
+                logger.info("Fan out completed, accepted: " + accepted + ", failed: " + failed);
+
+                resultHandler.handle(Future.succeededFuture(new JsonObject()
+                        .put("accepted", accepted)
+                        .put("failed", failed)));
+            }
+        }
+
+        private synchronized void resume() {
+            waiting = false;
+
+            pump();
+        }
+
+        private synchronized void delivered(AsyncResult<JsonObject> deliveryResult) {
+            outstanding--;
+
+            if (deliveryResult.succeeded()) {
+                accepted++;
+            } else {
+                failed++;
+            }
+
+            pump();
+        }
+    }
+
+    private class StreamFanOut implements ReadStream<JsonObject> {
+        private final FcmNotificationTemplate template;
+        private final ReadStream<String> recipients;
+        private final ArrayDeque<JsonObject> pendingOutcomes = new ArrayDeque<>();
+
+        private Handler<JsonObject> outcomeHandler;
+        private Handler<Void> endHandler;
+        private Handler<Throwable> exceptionHandler;
+
+        private int outstanding;
+        private long accepted;
+        private long failed;
+        private boolean started;
+        private boolean paused;
+        private boolean recipientsPaused;
+        private boolean recipientsEnded;
+        private boolean waiting;
+        private boolean ended;
+
+        private StreamFanOut(FcmNotificationTemplate template, ReadStream<String> recipients) {
+            this.template = template;
+            this.recipients = recipients;
+        }
+
+        @Override
+        public synchronized ReadStream<JsonObject> exceptionHandler(Handler<Throwable> handler) {
+            exceptionHandler = handler;
+
+            return this;
+        }
+
+        @Override
+        public synchronized ReadStream<JsonObject> handler(Handler<JsonObject> handler) {
+            outcomeHandler = handler;
+
+            if (handler != null && !started) {
+                started = true;
+
+                recipients.exceptionHandler(this::recipientsFailed);
+                recipients.endHandler(v -> recipientsEnded());
+                recipients.handler(this::recipient);
+            }
+
+            return this;
+        }
+
+        @Override
+        public synchronized ReadStream<JsonObject> pause() {
+            paused = true;
+            checkFlow();
+
+            return this;
+        }
+
+        @Override
+        public synchronized ReadStream<JsonObject> resume() {
+            paused = false;
+
+            while (!paused && outcomeHandler != null && !pendingOutcomes.isEmpty()) {
+                outcomeHandler.handle(pendingOutcomes.poll());
+            }
+
+            checkFlow();
+            checkEnd();
+
+            return this;
+        }
+
+        @Override
+        public synchronized ReadStream<JsonObject> endHandler(Handler<Void> handler) {
+            endHandler = handler;
+
+            return this;
+        }
+
+        private synchronized void recipient(String to) {
+            String messageId = sender.newMessageId();
+            outstanding++;
+
+            sender.deliver(messageId, to, template.getCollapseKey(), template.render(to, messageId),
+                    deliveryResult -> outcome(to, messageId, deliveryResult));
+
+            checkFlow();
+        }
+
+        // no more recipients arrive from a failed stream, so the outcomes end once the outstanding sends are answered
+        private synchronized void recipientsFailed(Throwable cause) {
+            logger.error("Recipient stream failed!", cause);
+
+            if (exceptionHandler != null) exceptionHandler.handle(cause);
+
+            recipientsEnded();
+        }
+
+        private synchronized void recipientsEnded() {
+            recipientsEnded = true;
+
+            checkEnd();
+        }
+
+        private synchronized void outcome(String to, String messageId, AsyncResult<JsonObject> deliveryResult) {
+            outstanding--;
+
+            JsonObject outcome = new JsonObject()
+                    .put("to", to)
+                    .put("messageId", messageId)
+                    .put("accepted", deliveryResult.succeeded());
+
+            if (deliveryResult.succeeded()) {
+                accepted++;
+            } else {
+                failed++;
+                outcome.put("error", String.valueOf(deliveryResult.cause()));
+            }
+
+            if (paused || outcomeHandler == null) {
+                pendingOutcomes.add(outcome);
+            } else {
+                outcomeHandler.handle(outcome);
+            }
+
+            checkFlow();
+            checkEnd();
+        }
+
+        private void checkFlow() {
+            if (recipientsEnded) return;
+
+            boolean saturated = sender.isQueueSaturated();
+
+            if (paused || saturated || outstanding >= maxOutstanding) {
+                if (!recipientsPaused) {
+                    recipientsPaused = true;
+                    recipients.pause();
+                }
+
+                if (saturated && !waiting) {
+                    waiting = true;
+
+                    vertx.setTimer(SATURATED_QUEUE_DELAY, timerId -> resumeFlow());
+                }
+            } else if (recipientsPaused) {
+                recipientsPaused = false;
+                recipients.resume();
+            }
+        }
+
+        private synchronized void resumeFlow() {
+            waiting = false;
+
+            checkFlow();
+        }
+
+        private void checkEnd() {
+            if (!ended && recipientsEnded && outstanding == 0 && pendingOutcomes.isEmpty()) {
+                ended = true;
+
+                logger.info("Stream fan out completed, accepted: " + accepted + ", failed: " + failed);
+
+                if (endHandler != null) endHandler.handle(null);
+            }
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Anders Mikkelsen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.nannoq.tools.fcm.server;
+
+import com.nannoq.tools.repository.repository.redis.RedisUtils;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+import io.vertx.redis.RedisClient;
+import io.vertx.redis.Script;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class keeps the device token buckets in redis hashes, so the limit holds across all nodes sending to a device.
+ * Every acquire is a single script call, and buckets expire once they would have refilled completely. Bucket times
+ * come from the calling node, so node clocks should be kept in sync.
+ *
+ * @author Anders Mikkelsen
+ * @version 31.03.2016
+ */
+class RedisDeviceRateLimiter implements DeviceRateLimiter {
+    private static final Logger logger = LoggerFactory.getLogger(RedisDeviceRateLimiter.class.getSimpleName());
+
+    private static final String BUCKET_PREFIX = "DEVICE_RATE:";
+
+    // KEYS[1] is the bucket. ARGV: burst, tokens per milli, now, max delay, penalize
+    private static final Script ACQUIRE_SCRIPT = Script.create(
+            "local burst = tonumber(ARGV[1]) " +
+            "local rate = tonumber(ARGV[2]) " +
+            "local now = tonumber(ARGV[3]) " +
+            "local bucket = redis.call('HMGET', KEYS[1], 'tokens', 'updated') " +
+            "local tokens = burst " +
+            "if bucket[1] then " +
+            "  tokens = math.min(burst, tonumber(bucket[1]) + math.max(0, now - tonumber(bucket[2])) * rate) " +
+            "end " +
+            "local delay = 0 " +
+            "if ARGV[5] == '1' then " +
+            "  tokens = math.min(tokens, 0) " +
+            "else " +
+            "  if tokens < 1 then delay = math.ceil((1 - tokens) / rate) end " +
+            "  if delay > tonumber(ARGV[4]) then return {-1} end " +
+            "  tokens = tokens - 1 " +
+            "end " +
+            "redis.call('HMSET', KEYS[1], 'tokens', tokens, 'updated', now) " +
+            "redis.call('PEXPIRE', KEYS[1], math.max(1, math.ceil((burst - tokens) / rate))) " +
+            "return {delay}");
+
+    private final RedisClient redisClient;
+    private final String burst;
+    private final String tokensPerMilli;
+
+    RedisDeviceRateLimiter(RedisClient redisClient, int burst, long ratePerHour) {
+        this.redisClient = redisClient;
+        this.burst = String.valueOf(burst);
+        this.tokensPerMilli = String.valueOf(ratePerHour / (double) TimeUnit.HOURS.toMillis(1));
+    }
+
+    @Override
+    public void acquire(String to, long maxDelay, Handler<AsyncResult<Long>> delayHandler) {
+        evaluate(to, maxDelay, false, delayHandler);
+    }
+
+    @Override
+    public void penalize(String to) {
+        evaluate(to, 0L, true, penaltyResult -> {
+            if (penaltyResult.failed()) logger.error("Could not penalize device: " + to, penaltyResult.cause());
+        });
+    }
+
+    private void evaluate(String to, long maxDelay, boolean penalize, Handler<AsyncResult<Long>> delayHandler) {
+        List<String> keys = Collections.singletonList(BUCKET_PREFIX + to);
+        List<String> args = Arrays.asList(burst, tokensPerMilli, String.valueOf(System.currentTimeMillis()),
+                String.valueOf(maxDelay), penalize ? "1" : "0");
+
+        RedisUtils.performJedisWithRetry(redisClient, redis -> redis.evalScript(ACQUIRE_SCRIPT, keys, args,
+                evalResult -> {
+            if (evalResult.failed()) {
+                delayHandler.handle(Future.failedFuture(evalResult.cause()));
+            } else {
+                delayHandler.handle(Future.succeededFuture(evalResult.result().getLong(0)));
+            }
+        }));
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Anders Mikkelsen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.nannoq.tools.fcm.server;
+
+import com.nannoq.tools.repository.repository.redis.RedisUtils;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+import io.vertx.redis.RedisClient;
+import io.vertx.redis.Script;
+import io.vertx.redis.op.ScanOptions;
+import io.vertx.redis.op.SetOptions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * This class keeps the outbox in a single redis hash keyed by message id. Each batch of writes stores the messages and
+ * increments their attempt counters in one script call. A companion hash records when each message was first enqueued
+ * and last attempted, recovery sweeps the outbox with HSCAN and only picks up messages no node has attempted within
+ * the idle threshold, holding a lock so only one node sweeps at a time.
+ *
+ * @author Anders Mikkelsen
+ * @version 31.03.2016
+ */
+class RedisHashOutbox extends AbstractRedisOutbox {
+    private static final Logger logger = LoggerFactory.getLogger(RedisHashOutbox.class.getSimpleName());
+
+    static final long DEFAULT_IDLE_THRESHOLD = 600000L;
+
+    private static final String META_SUFFIX = "_META";
+    private static final String LOCK_SUFFIX = "_RECOVERY_LOCK";
+    private static final long LOCK_TTL = 60000L;
+
+    // KEYS[1] is the message hash, KEYS[2] the meta hash, KEYS[3..n] the retry counters, ARGV[1] the current time
+    // followed by message id and json pairs
+    private static final Script STORE_SCRIPT = Script.create(
+            "local attempts = {} " +
+            "for i = 3, #KEYS do " +
+            "  local id = ARGV[i * 2 - 4] " +
+            "  local enqueued = ARGV[1] " +
+            "  local meta = redis.call('HGET', KEYS[2], id) " +
+            "  if meta then enqueued = string.match(meta, '^(%d+)') or enqueued end " +
+            "  redis.call('HSET', KEYS[1], id, ARGV[i * 2 - 3]) " +
+            "  redis.call('HSET', KEYS[2], id, enqueued .. ':' .. ARGV[1]) " +
+            "  attempts[i - 2] = redis.call('INCR', KEYS[i]) " +
+            "end " +
+            "return attempts");
+
+    private static final Script REMOVE_SCRIPT = Script.create(
+            "return {redis.call('HDEL', KEYS[1], ARGV[1]), redis.call('HDEL', KEYS[2], ARGV[1]), " +
+            "redis.call('DEL', KEYS[3])}");
+
+    // KEYS: meta hash, lock. ARGV: node id, lock ttl, message ids
+    private static final Script READ_META_SCRIPT = Script.create(
+            "if redis.call('GET', KEYS[2]) ~= ARGV[1] then return {0} end " +
+            "redis.call('PEXPIRE', KEYS[2], ARGV[2]) " +
+            "return {1, redis.call('HMGET', KEYS[1], unpack(ARGV, 3))}");
+
+    // KEYS: lock. ARGV: node id
+    private static final Script UNLOCK_SCRIPT = Script.create(
+            "if redis.call('GET', KEYS[1]) == ARGV[1] then return {redis.call('DEL', KEYS[1])} end " +
+            "return {0}");
+
+    private final RedisClient redisClient;
+    private final String messageHash;
+    private final String metaHash;
+    private final String lockKey;
+    private final String nodeId;
+    private final long idleThreshold;
+
+    RedisHashOutbox(Vertx vertx, RedisClient redisClient, String messageHash, String nodeId, long idleThreshold) {
+        super(vertx);
+        this.redisClient = redisClient;
+        this.messageHash = messageHash;
+        this.metaHash = messageHash + META_SUFFIX;
+        this.lockKey = messageHash + LOCK_SUFFIX;
+        this.nodeId = nodeId;
+        this.idleThreshold = idleThreshold;
+    }
+
+    @Override
+    public void start(Handler<AsyncResult<Void>> startHandler) {
+        startHandler.handle(Future.succeededFuture());
+    }
+
+    @Override
+    public void fetch(String messageId, Handler<AsyncResult<String>> resultHandler) {
+        RedisUtils.performJedisWithRetry(redisClient, redis -> redis.hget(messageHash, messageId, resultHandler));
+    }
+
+    @Override
+    public void remove(String messageId, Handler<AsyncResult<Void>> resultHandler) {
+        List<String> keys = Arrays.asList(messageHash, metaHash, messageId + RETRY_COUNT_SUFFIX);
+
+        RedisUtils.performJedisWithRetry(redisClient, redis -> redis.evalScript(REMOVE_SCRIPT, keys,
+                Collections.singletonList(messageId), removeResult -> {
+            if (removeResult.failed()) {
+                resultHandler.handle(Future.failedFuture(removeResult.cause()));
+            } else {
+                resultHandler.handle(Future.succeededFuture());
+            }
+        }));
+    }
+
+    @Override
+    public void recover(int pageSize, BiConsumer<List<OutboxEntry>, Handler<Void>> pageHandler,
+                        Handler<AsyncResult<Long>> doneHandler) {
+        SetOptions lockOptions = new SetOptions().setNX(true).setPX(LOCK_TTL);
+
+        RedisUtils.performJedisWithRetry(redisClient, redis -> redis.setWithOptions(lockKey, nodeId, lockOptions,
+                lockResult -> {
+            if (lockResult.failed()) {
+                doneHandler.handle(Future.failedFuture(lockResult.cause()));
+            } else if (lockResult.result() == null) {
+                logger.debug("Outbox recovery is running on another node...");
+
+                doneHandler.handle(Future.succeededFuture(0L));
+            } else {
+                AtomicLong recovered = new AtomicLong();
+
+                scanPage("0", pageSize, pageHandler, recovered, scanResult -> unlock(v -> {
+                    if (scanResult.failed()) {
+                        doneHandler.handle(Future.failedFuture(scanResult.cause()));
+                    } else {
+                        doneHandler.handle(Future.succeededFuture(recovered.get()));
+                    }
+                }));
+            }
+        }));
+    }
+
+    private void scanPage(String cursor, int pageSize, BiConsumer<List<OutboxEntry>, Handler<Void>> pageHandler,
+                          AtomicLong recovered, Handler<AsyncResult<Void>> doneHandler) {
+        ScanOptions scanOptions = new ScanOptions().setCount(pageSize);
+
+        RedisUtils.performJedisWithRetry(redisClient, redis -> redis.hscan(messageHash, cursor, scanOptions,
+                scanResult -> {
+            if (scanResult.failed()) {
+                doneHandler.handle(Future.failedFuture(scanResult.cause()));
+            } else {
+                String nextCursor = scanResult.result().getString(0);
+                JsonArray fields = scanResult.result().getJsonArray(1);
+                Handler<Void> next = v -> {
+                    if ("0".equals(nextCursor)) {
+                        doneHandler.handle(Future.succeededFuture());
+                    } else {
+                        scanPage(nextCursor, pageSize, pageHandler, recovered, doneHandler);
+                    }
+                };
+
+                if (fields.isEmpty()) {
+                    next.handle(null);
+                } else {
+                    readIdle(fields, readResult -> {
+                        if (readResult.failed()) {
+                            doneHandler.handle(Future.failedFuture(readResult.cause()));
+                        } else if (readResult.result().isEmpty()) {
+                            next.handle(null);
+                        } else {
+                            recovered.addAndGet(readResult.result().size());
+
+                            pageHandler.accept(readResult.result(), next);
+                        }
+                    });
+                }
+            }
+        }));
+    }
+
+    private void readIdle(JsonArray fields, Handler<AsyncResult<List<OutboxEntry>>> resultHandler) {
+        List<String> args = new ArrayList<>(fields.size() / 2 + 2);
+        args.add(nodeId);
+        args.add(String.valueOf(LOCK_TTL));
+
+        for (int i = 0; i < fields.size(); i += 2) {
+            args.add(fields.getString(i));
+        }
+
+        RedisUtils.performJedisWithRetry(redisClient, redis -> redis.evalScript(READ_META_SCRIPT,
+                Arrays.asList(metaHash, lockKey), args, metaResult -> {
+            if (metaResult.failed()) {
+                resultHandler.handle(Future.failedFuture(metaResult.cause()));
+            } else if (metaResult.result().getLong(0) == 0L) {
+                resultHandler.handle(Future.failedFuture(new IllegalStateException("Lost outbox recovery lock!")));
+            } else {
+                JsonArray metas = metaResult.result().getJsonArray(1);
+                List<OutboxEntry> idle = new ArrayList<>(metas.size());
+                long now = System.currentTimeMillis();
+
+                for (int i = 0; i < metas.size(); i++) {
+                    String meta = metas.getString(i);
+                    long enqueuedAt = now;
+                    long lastAttemptAt = 0L;
+
+                    if (meta != null) {
+                        int separator = meta.indexOf(':');
+                        enqueuedAt = Long.parseLong(meta.substring(0, separator));
+                        lastAttemptAt = Long.parseLong(meta.substring(separator + 1));
+                    }
+
+                    if (now - lastAttemptAt >= idleThreshold) {
+                        idle.add(new OutboxEntry(fields.getString(i * 2), fields.getString(i * 2 + 1), enqueuedAt));
+                    }
+                }
+
+                resultHandler.handle(Future.succeededFuture(idle));
+            }
+        }));
+    }
+
+    private void unlock(Handler<Void> doneHandler) {
+        RedisUtils.performJedisWithRetry(redisClient, redis -> redis.evalScript(UNLOCK_SCRIPT,
+                Collections.singletonList(lockKey), Collections.singletonList(nodeId), unlockResult -> {
+            if (unlockResult.failed()) {
+                logger.error("Could not release outbox recovery lock...", unlockResult.cause());
+            }
+
+            doneHandler.handle(null);
+        }));
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    protected void write(List<PendingWrite> batch) {
+        List<String> keys = new ArrayList<>(batch.size() + 2);
+        List<String> args = new ArrayList<>(batch.size() * 2 + 1);
+        keys.add(messageHash);
+        keys.add(metaHash);
+        args.add(String.valueOf(System.currentTimeMillis()));
+
+        batch.forEach(write -> {
+            keys.add(write.messageId + RETRY_COUNT_SUFFIX);
+            args.add(write.messageId);
+            args.add(write.json);
+        });
+
+        RedisUtils.performJedisWithRetry(redisClient, redis -> redis.evalScript(STORE_SCRIPT, keys, args, evalResult -> {
+            if (evalResult.failed()) {
+                logger.error("Failed storing batch of " + batch.size() + " messages...", evalResult.cause());
+
+                batch.forEach(write -> write.attemptHandler.handle(Future.failedFuture(evalResult.cause())));
+            } else {
+                JsonArray attempts = evalResult.result();
+
+                for (int i = 0; i < batch.size(); i++) {
+                    batch.get(i).attemptHandler.handle(Future.succeededFuture(attempts.getLong(i).intValue()));
+                }
+            }
+        }));
+    }
+}
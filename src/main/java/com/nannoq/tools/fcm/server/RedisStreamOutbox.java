@@ -0,0 +1,464 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Anders Mikkelsen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.nannoq.tools.fcm.server;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.nannoq.tools.repository.repository.redis.RedisUtils;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.CompositeFuture;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+import io.vertx.redis.RedisClient;
+import io.vertx.redis.Script;
+import io.vertx.redis.op.SetOptions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * This class keeps the outbox in a redis stream per node, trimmed to a maximum length. Nodes refresh a heartbeat key
+ * while running, when it expires the stream of that node is renamed to an orphan stream, which any surviving node can
+ * lease and replay sequentially. A restarting node orphans its own stream on startup.
+ *
+ * Scripts call redis.replicate_commands() as XADD with a generated id is non-deterministic.
+ *
+ * @author Anders Mikkelsen
+ * @version 31.03.2016
+ */
+class RedisStreamOutbox extends AbstractRedisOutbox {
+    private static final Logger logger = LoggerFactory.getLogger(RedisStreamOutbox.class.getSimpleName());
+
+    static final long DEFAULT_MAX_LENGTH = 1000000L;
+
+    private static final String STREAM_PREFIX = "MESSAGE_STREAM:";
+    private static final String HEARTBEAT_PREFIX = "MESSAGE_STREAM_HEARTBEAT:";
+    private static final String ORPHAN_PREFIX = "MESSAGE_STREAM_ORPHAN:";
+    private static final String LEASE_SUFFIX = ":lease";
+    private static final String NODES_KEY = "MESSAGE_STREAM_NODES";
+    private static final String ORPHANS_KEY = "MESSAGE_STREAM_ORPHANS";
+
+    private static final String MESSAGE_ID_FIELD = "message_id";
+    private static final String JSON_FIELD = "json";
+    private static final String ENQUEUED_FIELD = "enqueued";
+
+    private static final long HEARTBEAT_INTERVAL = 10000L;
+    private static final long HEARTBEAT_TTL = 30000L;
+    private static final long LEASE_TTL = 60000L;
+
+    // KEYS[1] is the stream, KEYS[2..n] the retry counters, ARGV[1] the max length followed by message id, json,
+    // previous entry id and enqueue time for each message
+    private static final Script STORE_SCRIPT = Script.create(
+            "redis.replicate_commands() " +
+            "local result = {} " +
+            "for i = 2, #KEYS do " +
+            "  local a = (i - 2) * 4 + 2 " +
+            "  if ARGV[a + 2] ~= '' then redis.call('XDEL', KEYS[1], ARGV[a + 2]) end " +
+            "  result[#result + 1] = redis.call('XADD', KEYS[1], 'MAXLEN', '~', ARGV[1], '*', " +
+            "    'message_id', ARGV[a], 'json', ARGV[a + 1], 'enqueued', ARGV[a + 3]) " +
+            "  result[#result + 1] = redis.call('INCR', KEYS[i]) " +
+            "end " +
+            "return result");
+
+    private static final Script REMOVE_SCRIPT = Script.create(
+            "if ARGV[1] ~= '' then redis.call('XDEL', KEYS[1], ARGV[1]) end " +
+            "return {redis.call('DEL', KEYS[2])}");
+
+    private static final Script FETCH_SCRIPT = Script.create(
+            "return redis.call('XRANGE', KEYS[1], ARGV[1], ARGV[1])");
+
+    // KEYS: heartbeat, stream, node set, orphan set, orphan stream. ARGV: node id, force
+    private static final Script ORPHAN_SCRIPT = Script.create(
+            "if ARGV[2] == '0' and redis.call('EXISTS', KEYS[1]) == 1 then return {0} end " +
+            "redis.call('SREM', KEYS[3], ARGV[1]) " +
+            "if redis.call('EXISTS', KEYS[2]) == 0 then return {0} end " +
+            "redis.call('RENAME', KEYS[2], KEYS[5]) " +
+            "redis.call('SADD', KEYS[4], KEYS[5]) " +
+            "return {1}");
+
+    // KEYS: orphan stream, lease. ARGV: node id, lease ttl, page size
+    private static final Script READ_PAGE_SCRIPT = Script.create(
+            "if redis.call('GET', KEYS[2]) ~= ARGV[1] then return {0} end " +
+            "redis.call('PEXPIRE', KEYS[2], ARGV[2]) " +
+            "return {1, redis.call('XRANGE', KEYS[1], '-', '+', 'COUNT', ARGV[3])}");
+
+    private static final Script DELETE_ENTRIES_SCRIPT = Script.create(
+            "return {redis.call('XDEL', KEYS[1], unpack(ARGV))}");
+
+    // KEYS: orphan stream, orphan set, lease. ARGV: node id
+    private static final Script FINISH_SCRIPT = Script.create(
+            "if redis.call('GET', KEYS[3]) ~= ARGV[1] then return {0} end " +
+            "if redis.call('XLEN', KEYS[1]) > 0 then return {0} end " +
+            "redis.call('DEL', KEYS[1], KEYS[3]) " +
+            "redis.call('SREM', KEYS[2], KEYS[1]) " +
+            "return {1}");
+
+    private final RedisClient redisClient;
+    private final String nodeId;
+    private final String streamKey;
+    private final String heartbeatKey;
+    private final long maxLength;
+    // bounded like the stream, an entry evicted here has most likely been trimmed from the stream as well
+    private final Cache<String, StreamEntry> entries;
+
+    private long heartbeatTimer = -1;
+
+    RedisStreamOutbox(Vertx vertx, RedisClient redisClient, String nodeId, long maxLength) {
+        super(vertx);
+        this.redisClient = redisClient;
+        this.nodeId = nodeId;
+        this.streamKey = STREAM_PREFIX + nodeId;
+        this.heartbeatKey = HEARTBEAT_PREFIX + nodeId;
+        this.maxLength = maxLength;
+        this.entries = CacheBuilder.newBuilder().maximumSize(maxLength).build();
+    }
+
+    @Override
+    public void start(Handler<AsyncResult<Void>> startHandler) {
+        orphan(nodeId, true, orphanResult -> {
+            if (orphanResult.failed()) {
+                startHandler.handle(Future.failedFuture(orphanResult.cause()));
+            } else {
+                if (orphanResult.result()) logger.info("Orphaned stream of previous run for node: " + nodeId);
+
+                RedisUtils.performJedisWithRetry(redisClient, redis -> redis.sadd(NODES_KEY, nodeId, addResult -> {
+                    if (addResult.failed()) {
+                        startHandler.handle(Future.failedFuture(addResult.cause()));
+                    } else {
+                        heartbeat();
+                        heartbeatTimer = vertx.setPeriodic(HEARTBEAT_INTERVAL, timerId -> heartbeat());
+
+                        startHandler.handle(Future.succeededFuture());
+                    }
+                }));
+            }
+        });
+    }
+
+    private void heartbeat() {
+        RedisUtils.performJedisWithRetry(redisClient, redis -> redis.psetex(heartbeatKey, HEARTBEAT_TTL, nodeId,
+                heartbeatResult -> {
+            if (heartbeatResult.failed()) {
+                logger.error("Could not refresh outbox heartbeat for node: " + nodeId, heartbeatResult.cause());
+            }
+        }));
+    }
+
+    @Override
+    public void fetch(String messageId, Handler<AsyncResult<String>> resultHandler) {
+        StreamEntry entry = entries.getIfPresent(messageId);
+
+        if (entry == null || entry.entryId == null) {
+            resultHandler.handle(Future.succeededFuture(null));
+        } else {
+            RedisUtils.performJedisWithRetry(redisClient, redis -> redis.evalScript(FETCH_SCRIPT,
+                    Collections.singletonList(streamKey), Collections.singletonList(entry.entryId), fetchResult -> {
+                if (fetchResult.failed()) {
+                    resultHandler.handle(Future.failedFuture(fetchResult.cause()));
+                } else if (fetchResult.result().isEmpty()) {
+                    resultHandler.handle(Future.succeededFuture(null));
+                } else {
+                    resultHandler.handle(Future.succeededFuture(
+                            toOutboxEntry(fetchResult.result().getJsonArray(0)).getJson()));
+                }
+            }));
+        }
+    }
+
+    @Override
+    public void remove(String messageId, Handler<AsyncResult<Void>> resultHandler) {
+        StreamEntry entry = entries.asMap().remove(messageId);
+        String entryId = entry == null || entry.entryId == null ? "" : entry.entryId;
+        List<String> keys = Arrays.asList(streamKey, messageId + RETRY_COUNT_SUFFIX);
+
+        RedisUtils.performJedisWithRetry(redisClient, redis -> redis.evalScript(REMOVE_SCRIPT, keys,
+                Collections.singletonList(entryId), removeResult -> {
+            if (removeResult.failed()) {
+                resultHandler.handle(Future.failedFuture(removeResult.cause()));
+            } else {
+                resultHandler.handle(Future.succeededFuture());
+            }
+        }));
+    }
+
+    @Override
+    protected void write(List<PendingWrite> batch) {
+        long now = System.currentTimeMillis();
+        List<String> keys = new ArrayList<>(batch.size() + 1);
+        List<String> args = new ArrayList<>(batch.size() * 4 + 1);
+        List<Long> enqueueTimes = new ArrayList<>(batch.size());
+        keys.add(streamKey);
+        args.add(String.valueOf(maxLength));
+
+        batch.forEach(write -> {
+            StreamEntry previous = entries.getIfPresent(write.messageId);
+            long enqueuedAt = previous == null ? now : previous.enqueuedAt;
+
+            keys.add(write.messageId + RETRY_COUNT_SUFFIX);
+            args.add(write.messageId);
+            args.add(write.json);
+            args.add(previous == null || previous.entryId == null ? "" : previous.entryId);
+            args.add(String.valueOf(enqueuedAt));
+            enqueueTimes.add(enqueuedAt);
+        });
+
+        RedisUtils.performJedisWithRetry(redisClient, redis -> redis.evalScript(STORE_SCRIPT, keys, args, evalResult -> {
+            if (evalResult.failed()) {
+                logger.error("Failed storing batch of " + batch.size() + " messages...", evalResult.cause());
+
+                batch.forEach(write -> write.attemptHandler.handle(Future.failedFuture(evalResult.cause())));
+            } else {
+                JsonArray result = evalResult.result();
+
+                for (int i = 0; i < batch.size(); i++) {
+                    PendingWrite write = batch.get(i);
+                    entries.put(write.messageId, new StreamEntry(result.getString(i * 2), enqueueTimes.get(i)));
+
+                    write.attemptHandler.handle(Future.succeededFuture(result.getLong(i * 2 + 1).intValue()));
+                }
+            }
+        }));
+    }
+
+    @Override
+    public void recover(int pageSize, BiConsumer<List<OutboxEntry>, Handler<Void>> pageHandler,
+                        Handler<AsyncResult<Long>> doneHandler) {
+        AtomicLong recovered = new AtomicLong();
+
+        orphanDeadNodes(orphanResult -> {
+            if (orphanResult.failed()) {
+                doneHandler.handle(Future.failedFuture(orphanResult.cause()));
+            } else {
+                RedisUtils.performJedisWithRetry(redisClient, redis -> redis.smembers(ORPHANS_KEY, membersResult -> {
+                    if (membersResult.failed()) {
+                        doneHandler.handle(Future.failedFuture(membersResult.cause()));
+                    } else {
+                        recoverNext(membersResult.result().iterator(), pageSize, pageHandler, recovered, doneHandler);
+                    }
+                }));
+            }
+        });
+    }
+
+    private void orphanDeadNodes(Handler<AsyncResult<Void>> resultHandler) {
+        RedisUtils.performJedisWithRetry(redisClient, redis -> redis.smembers(NODES_KEY, membersResult -> {
+            if (membersResult.failed()) {
+                resultHandler.handle(Future.failedFuture(membersResult.cause()));
+            } else {
+                List<Future<Boolean>> orphanFutures = new ArrayList<>();
+
+                membersResult.result().forEach(node -> {
+                    if (!nodeId.equals(node)) {
+                        Future<Boolean> orphanFuture = Future.future();
+                        orphan(node.toString(), false, orphanFuture.completer());
+                        orphanFutures.add(orphanFuture);
+                    }
+                });
+
+                if (orphanFutures.isEmpty()) {
+                    resultHandler.handle(Future.succeededFuture());
+                } else {
+                    // copied as CompositeFuture takes a raw list of futures
+                    CompositeFuture.all(new ArrayList<>(orphanFutures)).setHandler(allResult -> {
+                        if (allResult.failed()) {
+                            resultHandler.handle(Future.failedFuture(allResult.cause()));
+                        } else {
+                            resultHandler.handle(Future.succeededFuture());
+                        }
+                    });
+                }
+            }
+        }));
+    }
+
+    private void orphan(String node, boolean force, Handler<AsyncResult<Boolean>> resultHandler) {
+        List<String> keys = Arrays.asList(HEARTBEAT_PREFIX + node, STREAM_PREFIX + node, NODES_KEY, ORPHANS_KEY,
+                ORPHAN_PREFIX + node + ":" + System.currentTimeMillis());
+        List<String> args = Arrays.asList(node, force ? "1" : "0");
+
+        RedisUtils.performJedisWithRetry(redisClient, redis -> redis.evalScript(ORPHAN_SCRIPT, keys, args, result -> {
+            if (result.failed()) {
+                resultHandler.handle(Future.failedFuture(result.cause()));
+            } else {
+                resultHandler.handle(Future.succeededFuture(result.result().getLong(0) == 1L));
+            }
+        }));
+    }
+
+    private void recoverNext(Iterator<Object> orphanKeys, int pageSize,
+                             BiConsumer<List<OutboxEntry>, Handler<Void>> pageHandler,
+                             AtomicLong recovered, Handler<AsyncResult<Long>> doneHandler) {
+        if (!orphanKeys.hasNext()) {
+            doneHandler.handle(Future.succeededFuture(recovered.get()));
+
+            return;
+        }
+
+        String orphanKey = orphanKeys.next().toString();
+        String leaseKey = orphanKey + LEASE_SUFFIX;
+        Handler<Void> next = v -> recoverNext(orphanKeys, pageSize, pageHandler, recovered, doneHandler);
+        SetOptions leaseOptions = new SetOptions().setNX(true).setPX(LEASE_TTL);
+
+        RedisUtils.performJedisWithRetry(redisClient, redis -> redis.setWithOptions(leaseKey, nodeId, leaseOptions,
+                leaseResult -> {
+            if (leaseResult.failed() || leaseResult.result() == null) {
+                logger.debug("Orphan stream is leased by another node: " + orphanKey);
+
+                next.handle(null);
+            } else {
+                logger.info("Recovering orphan stream: " + orphanKey);
+
+                drainOrphan(orphanKey, leaseKey, pageSize, pageHandler, recovered, next);
+            }
+        }));
+    }
+
+    private void drainOrphan(String orphanKey, String leaseKey, int pageSize,
+                             BiConsumer<List<OutboxEntry>, Handler<Void>> pageHandler,
+                             AtomicLong recovered, Handler<Void> next) {
+        List<String> keys = Arrays.asList(orphanKey, leaseKey);
+        List<String> args = Arrays.asList(nodeId, String.valueOf(LEASE_TTL), String.valueOf(pageSize));
+
+        RedisUtils.performJedisWithRetry(redisClient, redis -> redis.evalScript(READ_PAGE_SCRIPT, keys, args,
+                readResult -> {
+            if (readResult.failed()) {
+                logger.error("Could not read orphan stream: " + orphanKey, readResult.cause());
+
+                next.handle(null);
+            } else if (readResult.result().getLong(0) == 0L) {
+                logger.warn("Lost lease on orphan stream: " + orphanKey);
+
+                next.handle(null);
+            } else {
+                JsonArray page = readResult.result().getJsonArray(1);
+
+                if (page.isEmpty()) {
+                    finishOrphan(orphanKey, leaseKey, next);
+                } else {
+                    List<OutboxEntry> outboxEntries = new ArrayList<>(page.size());
+                    List<String> entryIds = new ArrayList<>(page.size());
+
+                    for (int i = 0; i < page.size(); i++) {
+                        JsonArray streamEntry = page.getJsonArray(i);
+                        OutboxEntry outboxEntry = toOutboxEntry(streamEntry);
+
+                        entryIds.add(streamEntry.getString(0));
+
+                        if (outboxEntry.getMessageId() != null && outboxEntry.getJson() != null) {
+                            entries.asMap().putIfAbsent(outboxEntry.getMessageId(),
+                                    new StreamEntry(null, outboxEntry.getEnqueuedAt()));
+                            outboxEntries.add(outboxEntry);
+                        }
+                    }
+
+                    recovered.addAndGet(outboxEntries.size());
+
+                    pageHandler.accept(outboxEntries, v -> deleteEntries(orphanKey, entryIds, deleteResult ->
+                            drainOrphan(orphanKey, leaseKey, pageSize, pageHandler, recovered, next)));
+                }
+            }
+        }));
+    }
+
+    private void deleteEntries(String orphanKey, List<String> entryIds, Handler<AsyncResult<Void>> resultHandler) {
+        RedisUtils.performJedisWithRetry(redisClient, redis -> redis.evalScript(DELETE_ENTRIES_SCRIPT,
+                Collections.singletonList(orphanKey), entryIds, deleteResult -> {
+            if (deleteResult.failed()) {
+                logger.error("Could not delete recovered entries from: " + orphanKey, deleteResult.cause());
+
+                resultHandler.handle(Future.failedFuture(deleteResult.cause()));
+            } else {
+                resultHandler.handle(Future.succeededFuture());
+            }
+        }));
+    }
+
+    private void finishOrphan(String orphanKey, String leaseKey, Handler<Void> next) {
+        List<String> keys = Arrays.asList(orphanKey, ORPHANS_KEY, leaseKey);
+
+        RedisUtils.performJedisWithRetry(redisClient, redis -> redis.evalScript(FINISH_SCRIPT, keys,
+                Collections.singletonList(nodeId), finishResult -> {
+            if (finishResult.failed()) {
+                logger.error("Could not remove recovered stream: " + orphanKey, finishResult.cause());
+            } else {
+                logger.info("Recovered orphan stream: " + orphanKey);
+            }
+
+            next.handle(null);
+        }));
+    }
+
+    private OutboxEntry toOutboxEntry(JsonArray streamEntry) {
+        JsonArray fields = streamEntry.getJsonArray(1);
+        String messageId = null;
+        String json = null;
+        long enqueuedAt = System.currentTimeMillis();
+
+        for (int i = 0; i + 1 < fields.size(); i += 2) {
+            String field = fields.getString(i);
+
+            if (MESSAGE_ID_FIELD.equals(field)) {
+                messageId = fields.getString(i + 1);
+            } else if (JSON_FIELD.equals(field)) {
+                json = fields.getString(i + 1);
+            } else if (ENQUEUED_FIELD.equals(field)) {
+                enqueuedAt = Long.parseLong(fields.getString(i + 1));
+            }
+        }
+
+        return new OutboxEntry(messageId, json, enqueuedAt);
+    }
+
+    @Override
+    public void close() {
+        if (heartbeatTimer != -1) vertx.cancelTimer(heartbeatTimer);
+
+        RedisUtils.performJedisWithRetry(redisClient, redis -> redis.del(heartbeatKey, delResult -> {
+            if (delResult.failed()) {
+                logger.error("Could not remove outbox heartbeat for node: " + nodeId, delResult.cause());
+            }
+        }));
+    }
+
+    private static class StreamEntry {
+        private final String entryId;
+        private final long enqueuedAt;
+
+        private StreamEntry(String entryId, long enqueuedAt) {
+            this.entryId = entryId;
+            this.enqueuedAt = enqueuedAt;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Anders Mikkelsen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.nannoq.tools.fcm.server;
+
+import io.vertx.core.Vertx;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * This class schedules retries of outbound messages on Vert.x timers, so no threads are parked while waiting. First
+ * attempts are run immediately, retries are delayed with exponential backoff and jitter.
+ *
+ * @author Anders Mikkelsen
+ * @version 31.03.2016
+ */
+class RetryScheduler {
+    static final long DEFAULT_BASE_DELAY = 2000L;
+    static final long DEFAULT_MAX_DELAY = 300000L;
+
+    // caps the exponent so the shifted delay cannot overflow
+    private static final int MAX_BACKOFF_EXPONENT = 20;
+
+    private final long baseDelay;
+    private final long maxDelay;
+
+    RetryScheduler() {
+        this(DEFAULT_BASE_DELAY, DEFAULT_MAX_DELAY);
+    }
+
+    RetryScheduler(long baseDelay, long maxDelay) {
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * Runs the task after the retry backoff or the minimum delay, whichever is longer.
+     */
+    void schedule(Vertx vertx, int attempt, long minDelay, Runnable task) {
+        long delay = Math.max(attempt <= 1 ? 0L : getDelay(attempt - 1), minDelay);
+
+        if (delay < 1L) {
+            task.run();
+        } else {
+            vertx.setTimer(delay, timerId -> task.run());
+        }
+    }
+
+    long getDelay(int retry) {
+        long backoff = Math.min(maxDelay, baseDelay << Math.min(Math.max(retry - 1, 0), MAX_BACKOFF_EXPONENT));
+        long halfBackoff = backoff / 2;
+
+        return Math.max(1L, halfBackoff + ThreadLocalRandom.current().nextLong(halfBackoff + 1));
+    }
+}
@@ -25,34 +25,23 @@
 
 package com.nannoq.tools.fcm.server;
 
-import com.google.common.net.MediaType;
-import com.nannoq.tools.cluster.apis.APIManager;
 import com.nannoq.tools.fcm.server.control.ControlMessageHandler;
 import com.nannoq.tools.fcm.server.data.DataMessageHandler;
 import com.nannoq.tools.fcm.server.data.FcmDevice;
 import com.nannoq.tools.fcm.server.data.RegistrationService;
 import com.nannoq.tools.fcm.server.messageutils.CcsMessage;
+import com.nannoq.tools.fcm.server.messageutils.CcsStanzaHeader;
 import com.nannoq.tools.fcm.server.messageutils.FcmPacketExtension;
 import com.nannoq.tools.repository.repository.redis.RedisUtils;
-import io.vertx.core.AsyncResult;
-import io.vertx.core.Handler;
-import io.vertx.core.http.HttpClientOptions;
-import io.vertx.core.http.HttpClientRequest;
-import io.vertx.core.http.HttpHeaders;
-import io.vertx.core.json.Json;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import io.vertx.core.logging.Logger;
 import io.vertx.core.logging.LoggerFactory;
 import io.vertx.redis.RedisClient;
-import io.vertx.redis.RedisTransaction;
 import org.jivesoftware.smack.PacketListener;
 import org.jivesoftware.smack.packet.Message;
 import org.jivesoftware.smack.packet.Packet;
 
-import static com.nannoq.tools.fcm.server.FcmServer.GCM_DEVICE_GROUP_HTTP_ENDPOINT_COMPLETE;
-import static com.nannoq.tools.fcm.server.MessageSender.REDIS_MESSAGE_HASH;
-
 /**
  * This class handles reception of all messages received from the CCS and devices.
  *
@@ -67,6 +56,7 @@ public class XMPPPacketListener implements PacketListener {
 
     // gcm notations
     public static final String GCM_PACKET_TO_NOTATION = "to";
+    public static final String GCM_PACKET_CONDITION_NOTATION = "condition";
     public static final String GCM_PACKET_MESSAGE_ID_NOTATION = "message_id";
     public static final String GCM_PACKET_REGISTRATION_ID_NOTATION = "registration_id";
     public static final String GCM_PACKET_DATA_NOTATION = "data";
@@ -100,75 +90,78 @@ public class XMPPPacketListener implements PacketListener {
     private static final String GCM_RECEIPT_MESSAGE_DELIVERED_CODE = "MESSAGE_SENT_TO_DEVICE";
 
     private final FcmServer server;
+    private final MessageLog messageLog;
+    private final CcsConnection connection;
     private final MessageSender sender;
     private final RedisClient redisClient;
     private final DataMessageHandler dataMessageHandler;
     private final RegistrationService registrationService;
     private final String GCM_SENDER_ID;
     private final String GCM_API_KEY;
+    private final InboundDispatcher dispatcher;
 
     XMPPPacketListener(FcmServer server,
+                       CcsConnection connection,
+                       InboundDispatcher dispatcher,
+                       MessageSender sender,
                        RedisClient redisClient,
                        DataMessageHandler dataMessageHandler,
                        RegistrationService registrationService,
                        String GCM_SENDER_ID, String GCM_API_KEY) {
         this.server = server;
+        this.messageLog = server.getMessageLog();
+        this.connection = connection;
+        this.dispatcher = dispatcher;
         this.dataMessageHandler = dataMessageHandler;
         this.registrationService = registrationService;
         this.GCM_SENDER_ID = GCM_SENDER_ID;
         this.GCM_API_KEY = GCM_API_KEY;
-        sender = new MessageSender(server);
-        sender.setRedisClient(redisClient);
+        this.sender = sender;
         this.redisClient = redisClient;
     }
 
     @Override
     public void processPacket(Packet packet) {
-        logger.info("Packet received..");
-
         Message incomingMessage = (Message) packet;
         FcmPacketExtension gcmPacket = (FcmPacketExtension) incomingMessage.getExtension(GCM_NAMESPACE);
-        String json = gcmPacket.getJson();
-
-        JsonObject jsonMap = new JsonObject(json);
-
-        logger.info("Packet contents: " + jsonMap);
 
-        handleMessage(jsonMap);
+        handleMessage(CcsStanzaHeader.parse(gcmPacket.getJson()));
     }
 
-    private void handleMessage(JsonObject jsonMap) {
-        String messageType = jsonMap.getString(GCM_PACKET_MESSAGE_TYPE_NOTATION);
-        logger.info("Received a message of type: " + messageType);
+    // runs on the packet reader thread, so it only classifies the stanza and hands it to the dispatcher
+    private void handleMessage(CcsStanzaHeader header) {
+        String messageType = header.getMessageType();
 
-        if (messageType == null) {
-            logger.info("Received a datamessage...");
+        messageLog.debug(logger, "received", header.getMessageId(), "type", messageType, "json", header.getJson());
 
-            CcsMessage msg = getMessage(jsonMap);
+        if (messageType == null) {
+            CcsMessage msg = getMessage(header.toJsonObject());
 
-            try {
-                sender.send(MessageSender.createJsonAck(msg.getFrom(), msg.getMessageId()));
-            } catch (Exception e) {
-                sender.send(MessageSender.createJsonNack(msg.getFrom(), msg.getMessageId()));
+            if (dispatcher.dispatchData(msg.getFrom(), () -> dataMessageHandler.handle(msg))) {
+                try {
+                    sender.sendAck(connection, MessageSender.createJsonAck(msg.getFrom(), msg.getMessageId()));
+                } catch (Exception e) {
+                    sender.sendAck(connection, MessageSender.createJsonNack(msg.getFrom(), msg.getMessageId()));
+                }
+            } else {
+                logger.error("Inbound data stage is full, leaving message unacknowledged: " + msg.getMessageId());
             }
+        } else {
+            dispatcher.dispatchControl(() -> handleControlStanza(messageType, header));
+        }
+    }
 
-            dataMessageHandler.handle(msg);
-        } else if (GCM_PACKET_ACK_MESSAGE_NOTATION.equals(messageType)) {
-            logger.info("Received ACK ...");
-
-            handleAck(jsonMap);
+    private void handleControlStanza(String messageType, CcsStanzaHeader header) {
+        if (GCM_PACKET_ACK_MESSAGE_NOTATION.equals(messageType)) {
+            handleAck(header);
         } else if (GCM_PACKET_NACK_MESSAGE_NOTATION.equals(messageType)) {
-            logger.warn("Received NACK...");
-
-            handleNack(jsonMap);
+            handleNack(header);
         } else if (GCM_PACKET_RECEIPT_MESSAGE_NOTATION.equals(messageType)) {
-            logger.warn("Received Receipt...");
-
-            handleReceipt(jsonMap);
+            handleReceipt(header.toJsonObject());
         } else if (GCM_PACKET_CONTROL_MESSAGE_NOTATION.equals(messageType)) {
             logger.warn("Received CONTROL...");
 
-            new ControlMessageHandler(server).handleControl(jsonMap);
+            new ControlMessageHandler(server, connection.getConnection()).handleControl(header.toJsonObject());
         } else {
             logger.error("Could not parse message: " + messageType);
         }
@@ -184,37 +177,35 @@ public class XMPPPacketListener implements PacketListener {
                 jsonMap.getJsonObject(GCM_PACKET_DATA_NOTATION));
     }
 
-    private void handleAck(JsonObject jsonMap) {
-        String messageId = jsonMap.getString(GCM_PACKET_MESSAGE_ID_NOTATION);
-        String from = jsonMap.getString(GCM_PACKET_FROM_NOTATION);
-        String registrationId = jsonMap.getString(GCM_PACKET_REGISTRATION_ID_NOTATION);
+    private void handleAck(CcsStanzaHeader header) {
+        String messageId = header.getMessageId();
+        String from = header.getFrom();
+        String registrationId = header.getRegistrationId();
 
-        if (registrationId != null) {
-            logger.info("Received canonical, updating device!");
-        }
+        if (connection.release(messageId)) sender.drainQueue();
 
-        logger.info("CCS reports ACK for: " + messageId + " from: " + from);
+        messageLog.debug(logger, "ack", messageId, "from", from, "canonical", registrationId != null);
 
-        Integer success = jsonMap.getInteger("success");
-        Integer failure = jsonMap.getInteger("failure");
+        Integer success = header.getSuccess();
+        Integer failure = header.getFailure();
 
         if (success != null && failure != null) {
-            logger.info("CCS reports ACK for Device Group message...");
+            messageLog.debug(logger, "groupAck", messageId, "success", success, "failure", failure);
 
             if (failure > 0) {
-                RedisUtils.performJedisWithRetry(redisClient, redisClient -> redisClient.get(messageId, result -> {
+                sender.fetch(messageId, result -> {
                     if (result.failed()) {
                         logger.error("Failed to process message...", result.cause());
                     } else {
                         String messageAsJson = result.result();
 
                         if (messageAsJson != null) {
-                            JsonArray failedIds = jsonMap.getJsonArray("failed_registration_ids");
+                            JsonArray failedIds = header.toJsonObject().getJsonArray("failed_registration_ids");
 
-                            logger.info("Failed sending to following ids: " + failedIds.encodePrettily());
+                            logger.info("Failed sending to following ids: " + failedIds.encode());
 
                             failedIds.forEach(regId -> {
-                                logger.info("Resending to failed id: " + regId);
+                                messageLog.debug(logger, "groupResend", messageId, "to", regId);
 
                                 sender.sendToNewRecipient(regId.toString(), messageAsJson);
                             });
@@ -222,60 +213,46 @@ public class XMPPPacketListener implements PacketListener {
                             logger.error("Message Json is null for: " + messageId);
                         }
                     }
-                }));
-            }
-        } else {
-            RedisUtils.performJedisWithRetry(redisClient, redisClient -> {
-                RedisTransaction transaction = redisClient.transaction();
-
-                transaction.multi(multiResult -> {
-                    transaction.hdel(REDIS_MESSAGE_HASH, messageId, hDelResult -> {
-                        if (hDelResult.failed()) {
-                            logger.error("Could not remove message hash...");
-                        }
-                    });
 
-                    transaction.del(messageId + "_retry_count", delResult -> {
-                        if (delResult.failed()) {
-                            logger.error("Could not remove reply count...");
-                        }
-                    });
+                    sender.purge(messageId);
                 });
-
-                transaction.exec(execResult -> {
-                    if (execResult.failed()) {
-                        logger.error("Could not execute redis transaction...");
-                    } else {
-                        logger.info("Message sent successfully, purged from redis...");
-                    }
-                });
-            });
+            } else {
+                sender.purge(messageId);
+            }
+        } else {
+            sender.purge(messageId);
         }
+
+        sender.acknowledged(messageId, header);
     }
 
-    private void handleNack(JsonObject jsonMap) {
-        String from = jsonMap.getString(GCM_PACKET_FROM_NOTATION);
-        String messageId = jsonMap.getString(GCM_PACKET_MESSAGE_ID_NOTATION);
-        String registrationId = jsonMap.getString(GCM_PACKET_REGISTRATION_ID_NOTATION);
+    private void handleNack(CcsStanzaHeader header) {
+        String from = header.getFrom();
+        String messageId = header.getMessageId();
+        String registrationId = header.getRegistrationId();
 
-        logger.info("CCS reports NACK for: " + jsonMap.getString(GCM_PACKET_MESSAGE_ID_NOTATION) + " from: " + from);
+        if (connection.release(messageId)) sender.drainQueue();
 
-        String errorCode = jsonMap.getString(GCM_PACKET_ERROR_CODE_NOTATION);
+        String errorCode = header.getError();
 
-        if (registrationId != null) {
-            logger.info("Received canonical, updating device!");
-        }
+        messageLog.debug(logger, "nack", messageId, "from", from, "error", errorCode);
+
+        sender.nacked(messageId, errorCode);
 
         switch (errorCode) {
             case GCM_ERROR_CODE_BAD_REGISTRATION:
             case GCM_ERROR_CODE_DEVICE_UNREGISTERED:
                 logger.error("Registration ID does not exist, deleting device...");
 
+                sender.rejected(messageId, errorCode, header.getErrorDescription());
+
                 registrationService.handleDeviceRemoval(messageId, registrationId, res -> {
                     if (res.failed()) {
                         logger.error("No FcmDevice received for device group removal...");
+
+                        sender.purge(messageId);
                     } else {
-                        RedisUtils.performJedisWithRetry(redisClient, inner -> inner.get(messageId, result -> {
+                        sender.fetch(messageId, result -> {
                             if (result.failed()) {
                                 logger.error("Failed to process message...", result.cause());
                             } else {
@@ -286,12 +263,14 @@ public class XMPPPacketListener implements PacketListener {
                                             .getString(RESTRICTED_PACKAGE_NAME_KEY_NOTATION);
                                     String channelKey = packageName.substring(packageName.lastIndexOf(".") + 1);
 
-                                    deleteDeviceFromFCM(res.result(), inner, channelKey);
+                                    deleteDeviceFromFCM(res.result(), redisClient, channelKey);
                                 } else {
                                     logger.error("Message Json is null for: " + messageId);
                                 }
                             }
-                        }));
+
+                            sender.purge(messageId);
+                        });
                     }
                 });
 
@@ -299,40 +278,38 @@ public class XMPPPacketListener implements PacketListener {
             case GCM_ERROR_CODE_SERVICE_UNAVAILABLE:
                 logger.fatal("SERVICE UNAVAILABLE!");
 
-                sendReply(messageId);
+                sender.resend(messageId);
 
                 break;
             case GCM_ERROR_CODE_INTERNAL_SERVER_ERROR:
                 logger.fatal("INTERNAL SERVER ERROR!");
 
-                sendReply(messageId);
+                sender.resend(messageId);
 
                 break;
             case GCM_ERROR_CODE_INVALID_JSON:
-                logger.fatal("WRONG JSON FROM APP SERVER: " + jsonMap.getString(GCM_PACKET_ERROR_DESCRIPTION_NOTATION));
+                logger.fatal("WRONG JSON FROM APP SERVER: " + header.getErrorDescription());
+
+                sender.rejected(messageId, errorCode, header.getErrorDescription());
+                sender.purge(messageId);
 
                 break;
             case GCM_ERROR_CODE_DEVICE_MESSAGE_RATE_EXCEEDED:
-                logger.error("Exceeded message limit for device: " + from);
+                logger.error("Exceeded message limit for device, deferring resend: " + from);
+
+                sender.throttled(messageId, from);
 
                 break;
             default:
-                logger.error("Could not handle error: " + errorCode + " for: " + jsonMap.encodePrettily());
+                logger.error("Could not handle error: " + errorCode + " for: " + header.getJson());
+
+                sender.rejected(messageId, errorCode, header.getErrorDescription());
+                sender.purge(messageId);
 
                 break;
         }
     }
 
-    private void sendReply(String messageId) {
-        RedisUtils.performJedisWithRetry(redisClient, redis -> redis.hget(REDIS_MESSAGE_HASH, messageId, result -> {
-            if (result.failed()) {
-                logger.error("Unable to get map for message...");
-            } else {
-                sender.send(messageId, result.result());
-            }
-        }));
-    }
-
     private void deleteDeviceFromFCM(FcmDevice device, RedisClient redisClient, String channelKey) {
         String from = device.getFcmId();
         String notificationKeyName = device.getNotificationKeyName();
@@ -340,58 +317,21 @@ public class XMPPPacketListener implements PacketListener {
         RedisUtils.performJedisWithRetry(redisClient, redis -> redisClient.hget(channelKey, notificationKeyName, result -> {
             if (result.failed()) {
                 logger.error("Unable to fetch notificationkey...");
+            } else if (result.result() == null) {
+                logger.info("No device group stored for: " + notificationKeyName);
             } else {
-                String removeJson = Json.encode(MessageSender.createRemoveDeviceGroupJson(
-                        from, notificationKeyName, result.result()));
-
-                removeFromGroup(removeJson);
+                server.getDeviceGroupManager().removeFromGroup(from, notificationKeyName, result.result(),
+                        removeResult -> {
+                    if (removeResult.succeeded() && removeResult.result()) {
+                        logger.info("Completed Remove from Group...");
+                    } else {
+                        logger.error("Failed Remove from Group...");
+                    }
+                });
             }
         }));
     }
 
-    @SuppressWarnings("UnnecessaryLocalVariable")
-    private void removeFromGroup(String removeJson) {
-        Handler<AsyncResult<Boolean>> resultHandler = removeResult -> {
-            if (removeResult.succeeded()) {
-                if (removeResult.result()) {
-                    logger.error("Failed Remove from Group...");
-                } else {
-                    logger.info("Completed Remove from Group...");
-                }
-            } else {
-                logger.error("Failed Remove from Group...");
-            }
-        };
-
-        String url = GCM_DEVICE_GROUP_HTTP_ENDPOINT_COMPLETE;
-
-        APIManager.performRequestWithCircuitBreaker(resultHandler, removeFuture -> {
-            HttpClientOptions opts = new HttpClientOptions()
-                    .setSsl(true);
-
-            HttpClientRequest req = server.getVertx().createHttpClient(opts).postAbs(url, clientResponse -> {
-                int status = clientResponse.statusCode();
-                logger.info("Delete From Group response: " + (status == 200));
-
-                if (status != 200) {
-                    clientResponse.bodyHandler(body -> {
-                        logger.error(clientResponse.statusMessage());
-                        logger.error(body.toString());
-                    });
-                }
-            }).exceptionHandler(message -> {
-                logger.error(message);
-
-                removeFuture.fail(message);
-            });
-
-            req.putHeader(HttpHeaders.AUTHORIZATION, "key=" + GCM_API_KEY);
-            req.putHeader(HttpHeaders.CONTENT_TYPE, MediaType.JSON_UTF_8.toString());
-            req.putHeader("project_id", GCM_SENDER_ID);
-            req.end(removeJson);
-        }, fallBack -> logger.error("Remove From Group Failed: " + fallBack));
-    }
-
     private void handleReceipt(JsonObject jsonMap) {
         JsonObject data = jsonMap.getJsonObject(GCM_PACKET_DATA_NOTATION);
         String category = jsonMap.getString(GCM_PACKET_CATEGORY_NOTATION);
@@ -400,13 +340,16 @@ public class XMPPPacketListener implements PacketListener {
         String originalMessageId = data.getString(GCM_PACKET_RECEIPT_ORIGINAL_MESSAGE_ID_NOTATION);
         String gcmId = data.getString(GCM_PACKET_RECEIPT_GCM_ID_NOTATION);
 
-        logger.info("CCS reports RECEIPT for: " + category + " from: " + from + " with: " + data);
+        messageLog.debug(logger, "receipt", originalMessageId, "category", category, "status", messageStatus);
 
         switch (messageStatus) {
             case GCM_RECEIPT_MESSAGE_DELIVERED_CODE:
-                logger.info("Message ID: " + originalMessageId + " delivered to: " + gcmId);
+                messageLog.debug(logger, "delivered", originalMessageId, "to", gcmId);
+
+                sender.delivered(originalMessageId);
 
-                sender.send(MessageSender.createJsonAck(from, jsonMap.getString(GCM_PACKET_MESSAGE_ID_NOTATION)));
+                sender.sendAck(connection,
+                        MessageSender.createJsonAck(from, jsonMap.getString(GCM_PACKET_MESSAGE_ID_NOTATION)));
                 break;
             default:
                 logger.error("Unknown receipt message...");
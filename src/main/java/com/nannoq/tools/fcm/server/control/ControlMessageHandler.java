@@ -29,6 +29,7 @@ import com.nannoq.tools.fcm.server.FcmServer;
 import io.vertx.core.json.JsonObject;
 import io.vertx.core.logging.Logger;
 import io.vertx.core.logging.LoggerFactory;
+import org.jivesoftware.smack.Connection;
 
 /**
  * This class handles various scenarios for controlmessages received from the CCS.
@@ -43,9 +44,20 @@ public class ControlMessageHandler {
     private static final String GCM_PACKET_CONTROL_TYPE_NOTATION = "control_type";
 
     private final FcmServer server;
+    private final Connection connection;
 
+    /**
+     * @deprecated without the connection the control message arrived on, draining falls back to the connection
+     * currently chosen for sending. Use {@link #ControlMessageHandler(FcmServer, Connection)}.
+     */
+    @Deprecated
     public ControlMessageHandler(FcmServer server) {
+        this(server, null);
+    }
+
+    public ControlMessageHandler(FcmServer server, Connection connection) {
         this.server = server;
+        this.connection = connection;
     }
 
     public void handleControl(JsonObject jsonMap) {
@@ -54,8 +66,9 @@ public class ControlMessageHandler {
 
         switch (controlType) {
             case "CONNECTION_DRAINING":
-                server.setDraining();
-                logger.info("GCM is draining primary connection, starting secondary...");
+                server.setDraining(connection);
+
+                logger.info("GCM is draining connection, starting replacement...");
                 break;
             default:
                 logger.error("No action available for control: " + controlType);
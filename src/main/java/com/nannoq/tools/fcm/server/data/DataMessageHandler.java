@@ -33,8 +33,6 @@ import io.vertx.core.Handler;
 import io.vertx.core.json.JsonObject;
 import io.vertx.core.logging.Logger;
 import io.vertx.core.logging.LoggerFactory;
-import org.jsoup.Jsoup;
-import org.jsoup.safety.Whitelist;
 
 /**
  * This class handles various scenarios for data messages retrieved from devices.
@@ -56,10 +54,10 @@ public interface DataMessageHandler extends Handler<CcsMessage> {
 
     @Override
     default void handle(CcsMessage msg) {
-        logger.info("Message from: " + msg.getFrom() + "\n" +
-                "Message category: " + msg.getCategory() + "\n" +
-                "Message id: " + msg.getMessageId() + "\n" +
-                "Message data: " + msg.getPayload());
+        if (logger.isDebugEnabled()) {
+            logger.debug("event=upstream messageId=" + msg.getMessageId() + " from=" + msg.getFrom() +
+                    " category=" + msg.getCategory() + " data=" + msg.getPayload());
+        }
 
         String gcmId = msg.getFrom();
 
@@ -97,9 +95,7 @@ public interface DataMessageHandler extends Handler<CcsMessage> {
     void handleIncomingDataMessage(CcsMessage ccsMessage);
 
     default String cleanData(String input) {
-        if (input != null) return Jsoup.clean(input, Whitelist.basic());
-
-        return null;
+        return DataSanitizer.clean(input);
     }
 
     default void setDeviceAlive(JsonObject data) {
@@ -0,0 +1,131 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Anders Mikkelsen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.nannoq.tools.fcm.server.data;
+
+import org.jsoup.Jsoup;
+import org.jsoup.safety.Whitelist;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * This class sanitizes upstream strings with the same result as Jsoup.clean with the basic whitelist. Known actions
+ * are matched by lookup, and text without markup is checked, or normalized, in a single pass. Only strings holding
+ * markup or entities are parsed by Jsoup.
+ *
+ * @author Anders Mikkelsen
+ * @version 31.03.2016
+ */
+final class DataSanitizer {
+    private static final Whitelist WHITELIST = Whitelist.basic();
+    private static final Set<String> KNOWN_ACTIONS = new HashSet<>(Arrays.asList(
+            DataMessageHandler.REGISTER_DEVICE, DataMessageHandler.UPDATE_ID, DataMessageHandler.PONG));
+
+    private DataSanitizer() {}
+
+    static String clean(String input) {
+        if (input == null) return null;
+        if (KNOWN_ACTIONS.contains(input)) return input;
+
+        switch (classify(input)) {
+            case CLEAN:
+                return input;
+            case TEXT:
+                return normalize(input);
+            default:
+                return Jsoup.clean(input, WHITELIST);
+        }
+    }
+
+    private enum Kind { CLEAN, TEXT, MARKUP }
+
+    private static Kind classify(String input) {
+        int length = input.length();
+        if (length == 0) return Kind.CLEAN;
+
+        // Jsoup trims its output like String.trim, which includes control characters
+        Kind kind = input.charAt(0) <= ' ' || input.charAt(length - 1) <= ' ' ? Kind.TEXT : Kind.CLEAN;
+        char previous = 0;
+
+        for (int i = 0; i < length; i++) {
+            char c = input.charAt(i);
+
+            switch (c) {
+                case '<':
+                case '&':
+                case '\u0000':
+                    return Kind.MARKUP;
+                case '>':
+                case '\u00a0':
+                case '\t':
+                case '\n':
+                case '\f':
+                case '\r':
+                    kind = Kind.TEXT;
+                    break;
+                case ' ':
+                    if (previous == ' ') kind = Kind.TEXT;
+                    break;
+                default:
+                    break;
+            }
+
+            previous = c;
+        }
+
+        return kind;
+    }
+
+    // collapses whitespace runs and escapes the way Jsoup writes text nodes
+    private static String normalize(String input) {
+        StringBuilder text = new StringBuilder(input.length() + 8);
+        boolean whitespace = false;
+
+        for (int i = 0; i < input.length(); i++) {
+            char c = input.charAt(i);
+
+            if (c == ' ' || c == '\t' || c == '\n' || c == '\f' || c == '\r') {
+                whitespace = true;
+            } else {
+                if (whitespace) {
+                    text.append(' ');
+                    whitespace = false;
+                }
+
+                if (c == '>') {
+                    text.append("&gt;");
+                } else if (c == '\u00a0') {
+                    text.append("&nbsp;");
+                } else {
+                    text.append(c);
+                }
+            }
+        }
+
+        return text.toString().trim();
+    }
+}
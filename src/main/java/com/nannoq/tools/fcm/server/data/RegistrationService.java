@@ -33,8 +33,6 @@ import io.vertx.core.Handler;
 import io.vertx.core.json.JsonObject;
 import io.vertx.core.logging.Logger;
 import io.vertx.core.logging.LoggerFactory;
-import org.jsoup.Jsoup;
-import org.jsoup.safety.Whitelist;
 
 /**
  * @author Anders Mikkelsen
@@ -56,8 +54,6 @@ public interface RegistrationService {
     RegistrationService handleDeviceRemoval(String messageId, String registrationId, Handler<AsyncResult<FcmDevice>> resultHandler);
 
     default String cleanData(String input) {
-        if (input != null) return Jsoup.clean(input, Whitelist.basic());
-
-        return null;
+        return DataSanitizer.clean(input);
     }
 }
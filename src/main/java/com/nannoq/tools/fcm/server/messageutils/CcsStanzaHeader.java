@@ -0,0 +1,160 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Anders Mikkelsen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.nannoq.tools.fcm.server.messageutils;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.JsonObject;
+
+import java.io.IOException;
+
+/**
+ * Represents the routing fields of an inbound CCS stanza, read with a streaming parser that skips nested objects and
+ * arrays. The full json tree is only built when a handler asks for it, so ACKs and NACKs never materialize one.
+ *
+ * @author Anders Mikkelsen
+ * @version 31.03.2016
+ */
+public class CcsStanzaHeader {
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private final String json;
+
+    private String messageType;
+    private String messageId;
+    private String from;
+    private String registrationId;
+    private String error;
+    private String errorDescription;
+    private Integer success;
+    private Integer failure;
+
+    private JsonObject jsonObject;
+
+    private CcsStanzaHeader(String json) {
+        this.json = json;
+    }
+
+    public static CcsStanzaHeader parse(String json) {
+        CcsStanzaHeader header = new CcsStanzaHeader(json);
+
+        try (JsonParser parser = JSON_FACTORY.createParser(json)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new DecodeException("Stanza is not a json object: " + json);
+            }
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+
+                if (value == JsonToken.START_OBJECT || value == JsonToken.START_ARRAY) {
+                    parser.skipChildren();
+                } else if (value != JsonToken.VALUE_NULL) {
+                    header.setField(field, parser);
+                }
+            }
+        } catch (IOException e) {
+            throw new DecodeException("Failed to decode stanza: " + e.getMessage());
+        }
+
+        return header;
+    }
+
+    private void setField(String field, JsonParser parser) throws IOException {
+        switch (field) {
+            case "message_type":
+                messageType = parser.getText();
+                break;
+            case "message_id":
+                messageId = parser.getText();
+                break;
+            case "from":
+                from = parser.getText();
+                break;
+            case "registration_id":
+                registrationId = parser.getText();
+                break;
+            case "error":
+                error = parser.getText();
+                break;
+            case "error_description":
+                errorDescription = parser.getText();
+                break;
+            case "success":
+                success = parser.getValueAsInt();
+                break;
+            case "failure":
+                failure = parser.getValueAsInt();
+                break;
+            default:
+                break;
+        }
+    }
+
+    public String getMessageType() {
+        return messageType;
+    }
+
+    public String getMessageId() {
+        return messageId;
+    }
+
+    public String getFrom() {
+        return from;
+    }
+
+    public String getRegistrationId() {
+        return registrationId;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public String getErrorDescription() {
+        return errorDescription;
+    }
+
+    public Integer getSuccess() {
+        return success;
+    }
+
+    public Integer getFailure() {
+        return failure;
+    }
+
+    public String getJson() {
+        return json;
+    }
+
+    public JsonObject toJsonObject() {
+        if (jsonObject == null) jsonObject = new JsonObject(json);
+
+        return jsonObject;
+    }
+}
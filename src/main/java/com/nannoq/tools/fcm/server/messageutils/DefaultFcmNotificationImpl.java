@@ -0,0 +1,95 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Anders Mikkelsen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.nannoq.tools.fcm.server.messageutils;
+
+import io.vertx.core.json.JsonObject;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Represents a notification read from json, with the fields data, notification, collapseKey, priority and
+ * packageNameExtension.
+ *
+ * @author Anders Mikkelsen
+ * @version 31.03.2016
+ */
+public class DefaultFcmNotificationImpl implements FcmNotification {
+    private final Map<String, String> data;
+    private final Map<String, String> notification;
+    private final String collapseKey;
+    private final String priority;
+    private String packageNameExtension;
+
+    public DefaultFcmNotificationImpl(JsonObject json) {
+        data = toStringMap(json.getJsonObject("data"));
+        notification = toStringMap(json.getJsonObject("notification"));
+        collapseKey = json.getString("collapseKey");
+        priority = json.getString("priority");
+        packageNameExtension = json.getString("packageNameExtension");
+    }
+
+    private static Map<String, String> toStringMap(JsonObject json) {
+        if (json == null) return null;
+
+        Map<String, String> map = new HashMap<>();
+        json.forEach(entry -> map.put(entry.getKey(), entry.getValue() == null ? null : entry.getValue().toString()));
+
+        return map;
+    }
+
+    @Override
+    public Map<String, String> getData() {
+        return data;
+    }
+
+    @Override
+    public Map<String, String> getNotification() {
+        return notification;
+    }
+
+    @Override
+    public String getCollapseKey() {
+        return collapseKey;
+    }
+
+    @Override
+    public String getPriority() {
+        return priority;
+    }
+
+    @Override
+    public String getPackageNameExtension() {
+        return packageNameExtension;
+    }
+
+    @Override
+    public FcmNotification setPackageNameExtension(String packageNameExtension) {
+        this.packageNameExtension = packageNameExtension;
+
+        return this;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Anders Mikkelsen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.nannoq.tools.fcm.server.messageutils;
+
+import com.fasterxml.jackson.core.util.BufferRecyclers;
+import io.vertx.core.json.JsonObject;
+
+import static com.nannoq.tools.fcm.server.XMPPPacketListener.GCM_PACKET_COLLAPSE_KEY_NOTATION;
+import static com.nannoq.tools.fcm.server.XMPPPacketListener.GCM_PACKET_CONDITION_NOTATION;
+import static com.nannoq.tools.fcm.server.XMPPPacketListener.GCM_PACKET_MESSAGE_ID_NOTATION;
+import static com.nannoq.tools.fcm.server.XMPPPacketListener.GCM_PACKET_TO_NOTATION;
+
+/**
+ * Represents a notification encoded once for sending to many recipients. Everything but the recipient and the
+ * message id is kept as pre-encoded json, so each recipient only costs splicing those two values in.
+ *
+ * @author Anders Mikkelsen
+ * @version 31.03.2016
+ */
+public class FcmNotificationTemplate {
+    private static final String PREFIX = "{\"" + GCM_PACKET_TO_NOTATION + "\":\"";
+    private static final String CONDITION_PREFIX = "{\"" + GCM_PACKET_CONDITION_NOTATION + "\":\"";
+    private static final String MESSAGE_ID_FIELD = "\",\"" + GCM_PACKET_MESSAGE_ID_NOTATION + "\":\"";
+
+    private final String suffix;
+    private final String collapseKey;
+
+    /**
+     * @param body the message without recipient and message id
+     */
+    public FcmNotificationTemplate(JsonObject body) {
+        String encoded = body.encode();
+
+        suffix = body.isEmpty() ? "\"}" : "\"," + encoded.substring(1);
+        collapseKey = body.getString(GCM_PACKET_COLLAPSE_KEY_NOTATION);
+    }
+
+    public String getCollapseKey() {
+        return collapseKey;
+    }
+
+    /**
+     * @throws IllegalArgumentException when the recipient is null
+     */
+    public String render(String to, String messageId) {
+        if (to == null) throw new IllegalArgumentException("Recipient cannot be null for message: " + messageId);
+
+        return render(PREFIX, to, messageId);
+    }
+
+    /**
+     * Renders the message for a topic condition like "'news' in topics || 'sports' in topics" instead of a recipient.
+     *
+     * @throws IllegalArgumentException when the condition is null
+     */
+    public String renderCondition(String condition, String messageId) {
+        if (condition == null) {
+            throw new IllegalArgumentException("Condition cannot be null for message: " + messageId);
+        }
+
+        return render(CONDITION_PREFIX, condition, messageId);
+    }
+
+    private String render(String prefix, String target, String messageId) {
+        return new StringBuilder(prefix.length() + target.length() + MESSAGE_ID_FIELD.length() + messageId.length() +
+                suffix.length())
+                .append(prefix)
+                .append(BufferRecyclers.getJsonStringEncoder().quoteAsString(target))
+                .append(MESSAGE_ID_FIELD)
+                .append(messageId)
+                .append(suffix)
+                .toString();
+    }
+}
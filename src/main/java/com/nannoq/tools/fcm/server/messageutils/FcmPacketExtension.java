@@ -28,7 +28,6 @@ package com.nannoq.tools.fcm.server.messageutils;
 import org.jivesoftware.smack.packet.DefaultPacketExtension;
 import org.jivesoftware.smack.packet.Message;
 import org.jivesoftware.smack.packet.Packet;
-import org.jivesoftware.smack.util.StringUtils;
 
 import static com.nannoq.tools.fcm.server.XMPPPacketListener.GCM_ELEMENT_NAME;
 import static com.nannoq.tools.fcm.server.XMPPPacketListener.GCM_NAMESPACE;
@@ -43,6 +42,7 @@ import static com.nannoq.tools.fcm.server.XMPPPacketListener.GCM_NAMESPACE;
  */
 public class FcmPacketExtension extends DefaultPacketExtension {
     private final String json;
+    private String xml;
 
     public FcmPacketExtension(String json) {
         super(GCM_ELEMENT_NAME, GCM_NAMESPACE);
@@ -55,9 +55,9 @@ public class FcmPacketExtension extends DefaultPacketExtension {
 
     @Override
     public String toXML() {
-        return String.format("<%s xmlns=\"%s\">%s</%s>",
-                GCM_ELEMENT_NAME, GCM_NAMESPACE,
-                StringUtils.escapeForXML(json), GCM_ELEMENT_NAME);
+        if (xml == null) xml = FcmStanzaEncoder.encode(json);
+
+        return xml;
     }
 
     public Packet toPacket() {
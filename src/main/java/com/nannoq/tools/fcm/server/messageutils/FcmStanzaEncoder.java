@@ -0,0 +1,102 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Anders Mikkelsen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.nannoq.tools.fcm.server.messageutils;
+
+import static com.nannoq.tools.fcm.server.XMPPPacketListener.GCM_ELEMENT_NAME;
+import static com.nannoq.tools.fcm.server.XMPPPacketListener.GCM_NAMESPACE;
+
+/**
+ * Encodes outbound json into the gcm stanza envelope, escaping it for XML in a single pass over a per thread buffer.
+ * Produces the same output as formatting the envelope around StringUtils.escapeForXML, except for three digit
+ * decimal character references like "&#235;", which are escaped here instead of being passed through as XML.
+ *
+ * @author Anders Mikkelsen
+ * @version 31.03.2016
+ */
+public class FcmStanzaEncoder {
+    private static final String ENVELOPE_START = "<" + GCM_ELEMENT_NAME + " xmlns=\"" + GCM_NAMESPACE + "\">";
+    private static final String ENVELOPE_END = "</" + GCM_ELEMENT_NAME + ">";
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    // buffers grown past this by a large payload are dropped instead of being retained by the thread
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+    private static final ThreadLocal<StringBuilder> BUFFER =
+            ThreadLocal.withInitial(() -> new StringBuilder(INITIAL_CAPACITY));
+
+    private FcmStanzaEncoder() {}
+
+    public static String encode(String json) {
+        StringBuilder buffer = BUFFER.get();
+        buffer.setLength(0);
+        buffer.ensureCapacity(ENVELOPE_START.length() + ENVELOPE_END.length() + json.length() + (json.length() >> 3));
+
+        buffer.append(ENVELOPE_START);
+        appendEscaped(buffer, json);
+        buffer.append(ENVELOPE_END);
+
+        String stanza = buffer.toString();
+
+        if (buffer.capacity() > MAX_RETAINED_CAPACITY) BUFFER.set(new StringBuilder(INITIAL_CAPACITY));
+
+        return stanza;
+    }
+
+    static void appendEscaped(StringBuilder buffer, String value) {
+        int length = value.length();
+        int unescapedStart = 0;
+
+        for (int i = 0; i < length; i++) {
+            String replacement;
+
+            switch (value.charAt(i)) {
+                case '<':
+                    replacement = "&lt;";
+                    break;
+                case '>':
+                    replacement = "&gt;";
+                    break;
+                case '&':
+                    replacement = "&amp;";
+                    break;
+                case '"':
+                    replacement = "&quot;";
+                    break;
+                case '\'':
+                    replacement = "&apos;";
+                    break;
+                default:
+                    continue;
+            }
+
+            buffer.append(value, unescapedStart, i).append(replacement);
+            unescapedStart = i + 1;
+        }
+
+        buffer.append(value, unescapedStart, length);
+    }
+}
@@ -25,11 +25,9 @@
 
 package com.nannoq.tools.fcm.server.messageutils;
 
-import io.vertx.core.json.Json;
+import com.fasterxml.jackson.core.util.BufferRecyclers;
 import io.vertx.core.json.JsonObject;
 
-import java.util.HashMap;
-import java.util.Map;
 import java.util.UUID;
 
 import static com.nannoq.tools.fcm.server.XMPPPacketListener.*;
@@ -50,6 +48,15 @@ public class MessageUtils {
     private static final String GCM_PACKET_PRIORITY_NOTATION = "priority";
     private static final String DELIVERY_RECEIPT_REQUESTED = "delivery_receipt_requested";
 
+    // fields every message built here shares, encoded once
+    private static final String CONSTANT_FIELDS =
+            ",\"" + GCM_PACKET_TIME_TO_LIVE_NOTATION + "\":" + TIME_TO_LIVE +
+            ",\"" + GCM_PACKET_DELAY_WHILE_IDLE_NOTATION + "\":" + DELAY_WHILE_IDLE +
+            ",\"" + IOS_MUTABLE_NOTATION + "\":true" +
+            ",\"" + GCM_PACKET_PRIORITY_NOTATION + "\":\"high\"" +
+            ",\"" + DELIVERY_RECEIPT_REQUESTED + "\":true" +
+            ",\"" + GCM_PACKET_CONTENT_AVAILABLE_NOTATION + "\":";
+
     private static String generateNewMessageId() {
         return UUID.randomUUID().toString();
     }
@@ -64,9 +71,41 @@ public class MessageUtils {
         return map;
     }
 
+    /**
+     * Writes the same message as createJsonMessage straight to its wire json, for messages that are sent as is.
+     */
+    public static String encodeJsonMessage(String to, String action, String messageId,
+                                           JsonObject payload, String collapseKey, String packageName) {
+        StringBuilder json = new StringBuilder(256).append('{');
+
+        if (messageId != null) appendField(json, GCM_PACKET_MESSAGE_ID_NOTATION, messageId);
+        if (to != null) appendField(json, GCM_PACKET_TO_NOTATION, to);
+        if (collapseKey != null) appendField(json, GCM_PACKET_COLLAPSE_KEY_NOTATION, collapseKey);
+        appendField(json, RESTRICTED_PACKAGE_NAME_KEY_NOTATION, packageName);
+
+        if (payload != null) {
+            payload.put(ACTION_NOTATION, action);
+            json.append(",\"").append(GCM_PACKET_DATA_NOTATION).append("\":").append(payload.encode());
+        }
+
+        return json.append(CONSTANT_FIELDS).append(payload != null).append('}').toString();
+    }
+
+    private static void appendField(StringBuilder json, String name, String value) {
+        if (json.length() > 1) json.append(',');
+        json.append('"').append(name).append("\":");
+
+        if (value == null) {
+            json.append("null");
+        } else {
+            // the encoder reuses its buffers, so each thread has its own
+            json.append('"').append(BufferRecyclers.getJsonStringEncoder().quoteAsString(value)).append('"');
+        }
+    }
+
     private static JsonObject createAttributeMap(String to, String action, String messageId,
                                                  JsonObject payload, String collapseKey, String packageName) {
-        Map<String, Object> message = new HashMap<>();
+        JsonObject message = new JsonObject();
 
         if (to != null) message.put(GCM_PACKET_TO_NOTATION, to);
         if (collapseKey != null) message.put(GCM_PACKET_COLLAPSE_KEY_NOTATION, collapseKey);
@@ -78,7 +117,7 @@ public class MessageUtils {
 
         if (payload != null) {
             payload.put(ACTION_NOTATION, action);
-            message.put(GCM_PACKET_DATA_NOTATION, payload);
+            message.put(GCM_PACKET_DATA_NOTATION, payload.copy());
         }
 
         message.put(RESTRICTED_PACKAGE_NAME_KEY_NOTATION, packageName);
@@ -86,6 +125,6 @@ public class MessageUtils {
         message.put(GCM_PACKET_PRIORITY_NOTATION, "high");
         message.put(DELIVERY_RECEIPT_REQUESTED, true);
 
-        return new JsonObject(Json.encode(message));
+        return message;
     }
 }
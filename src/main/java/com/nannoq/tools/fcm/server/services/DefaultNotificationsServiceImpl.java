@@ -0,0 +1,180 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Anders Mikkelsen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.nannoq.tools.fcm.server.services;
+
+import com.nannoq.tools.fcm.server.FcmServer;
+import com.nannoq.tools.fcm.server.messageutils.DefaultFcmNotificationImpl;
+import com.nannoq.tools.fcm.server.messageutils.FcmNotification;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class implements the NotificationsService on top of an FcmServer. Message bodies hold the notification under
+ * "notification" and one target: "topic" or "condition" for topic notifications, "to" or "recipients" for user
+ * notifications. Single notifications complete once CCS acknowledges them, and fail on a NACK that is not retried
+ * or on the delivery timeout. Bulk notifications take "recipients" and complete with the amount of sends CCS
+ * accepted and of those that failed.
+ *
+ * @author Anders Mikkelsen
+ * @version 31.03.2016
+ */
+public class DefaultNotificationsServiceImpl implements NotificationsService {
+    private static final String TOPIC_PREFIX = "/topics/";
+
+    private final FcmServer server;
+
+    public DefaultNotificationsServiceImpl(FcmServer server) {
+        this.server = server;
+    }
+
+    @Override
+    public NotificationsService sendTopicNotification(JsonObject messageBody,
+                                                      Handler<AsyncResult<Boolean>> resultHandler) {
+        String notificationError = validateNotification(messageBody);
+        String topic = messageBody.getString("topic");
+        String condition = messageBody.getString("condition");
+
+        if (notificationError != null) {
+            resultHandler.handle(Future.failedFuture(new IllegalArgumentException(notificationError)));
+        } else if (topic != null) {
+            String to = topic.startsWith(TOPIC_PREFIX) ? topic : TOPIC_PREFIX + topic;
+
+            server.deliverNotification(to, getNotification(messageBody), deliveryResult ->
+                    handleDelivered(deliveryResult, resultHandler));
+        } else if (condition != null) {
+            server.deliverConditionNotification(condition, getNotification(messageBody), deliveryResult ->
+                    handleDelivered(deliveryResult, resultHandler));
+        } else {
+            resultHandler.handle(Future.failedFuture(new IllegalArgumentException("Topic or condition required!")));
+        }
+
+        return this;
+    }
+
+    @Override
+    public NotificationsService sendUserNotification(JsonObject messageBody,
+                                                     Handler<AsyncResult<Boolean>> resultHandler) {
+        String notificationError = validateNotification(messageBody);
+        String to = messageBody.getString("to");
+
+        if (notificationError != null) {
+            resultHandler.handle(Future.failedFuture(new IllegalArgumentException(notificationError)));
+        } else if (to != null) {
+            server.deliverNotification(to, getNotification(messageBody), deliveryResult ->
+                    handleDelivered(deliveryResult, resultHandler));
+        } else {
+            sendBulkNotification(messageBody, bulkResult -> {
+                if (bulkResult.failed()) {
+                    resultHandler.handle(Future.failedFuture(bulkResult.cause()));
+                } else {
+                    resultHandler.handle(Future.succeededFuture(bulkResult.result().getLong("failed") == 0L));
+                }
+            });
+        }
+
+        return this;
+    }
+
+    @Override
+    public NotificationsService sendBulkNotification(JsonObject messageBody,
+                                                     Handler<AsyncResult<JsonObject>> resultHandler) {
+        String notificationError = validateNotification(messageBody);
+        Object recipients = messageBody.getValue("recipients");
+
+        if (notificationError != null) {
+            resultHandler.handle(Future.failedFuture(new IllegalArgumentException(notificationError)));
+        } else if (recipients == null) {
+            resultHandler.handle(Future.failedFuture(new IllegalArgumentException("Recipients cannot be null!")));
+        } else if (!(recipients instanceof JsonArray) ||
+                ((JsonArray) recipients).stream().anyMatch(recipient -> !(recipient instanceof String))) {
+            resultHandler.handle(Future.failedFuture(
+                    new IllegalArgumentException("Recipients must be an array of strings!")));
+        } else {
+            List<String> to = new ArrayList<>(((JsonArray) recipients).size());
+            ((JsonArray) recipients).forEach(recipient -> to.add((String) recipient));
+
+            server.sendNotification(to, getNotification(messageBody), resultHandler);
+        }
+
+        return this;
+    }
+
+    /**
+     * Message bodies arrive from the event bus, so the notification is checked before it is read.
+     *
+     * @return the reason the notification cannot be sent, or null when it is valid
+     */
+    private String validateNotification(JsonObject messageBody) {
+        Object notification = messageBody.getValue("notification");
+
+        if (notification == null) return "Notification cannot be null!";
+        if (!(notification instanceof JsonObject)) return "Notification must be an object!";
+
+        JsonObject json = (JsonObject) notification;
+
+        if (!(json.getValue("packageNameExtension") instanceof String)) {
+            return "Notification requires a packageNameExtension!";
+        }
+
+        if (!isNullOr(json, "data", JsonObject.class) || !isNullOr(json, "notification", JsonObject.class)) {
+            return "Notification data and notification must be objects!";
+        }
+
+        if (!isNullOr(json, "collapseKey", String.class) || !isNullOr(json, "priority", String.class)) {
+            return "Notification collapseKey and priority must be strings!";
+        }
+
+        return null;
+    }
+
+    private boolean isNullOr(JsonObject json, String key, Class<?> type) {
+        Object value = json.getValue(key);
+
+        return value == null || type.isInstance(value);
+    }
+
+    private FcmNotification getNotification(JsonObject messageBody) {
+        return new DefaultFcmNotificationImpl(messageBody.getJsonObject("notification"));
+    }
+
+    private void handleDelivered(AsyncResult<JsonObject> deliveryResult, Handler<AsyncResult<Boolean>> resultHandler) {
+        if (deliveryResult.failed()) {
+            resultHandler.handle(Future.failedFuture(deliveryResult.cause()));
+        } else {
+            resultHandler.handle(Future.succeededFuture(Boolean.TRUE));
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+}
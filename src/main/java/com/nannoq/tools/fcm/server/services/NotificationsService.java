@@ -50,6 +50,9 @@ public interface NotificationsService {
     @Fluent
     NotificationsService sendUserNotification(JsonObject messageBody, Handler<AsyncResult<Boolean>> resultHandler);
 
+    @Fluent
+    NotificationsService sendBulkNotification(JsonObject messageBody, Handler<AsyncResult<JsonObject>> resultHandler);
+
     @ProxyClose
     void close();
 }
@@ -0,0 +1,129 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Anders Mikkelsen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.nannoq.tools.fcm;
+
+import com.nannoq.tools.fcm.server.FcmServer;
+import com.nannoq.tools.fcm.server.messageutils.FcmNotificationTemplate;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+import org.HdrHistogram.Histogram;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class drives a fixed amount of notifications through an FcmServer with a bounded window of deliveries in
+ * flight, and reports the sustained rate and the send to ACK latency percentiles.
+ *
+ * @author Anders Mikkelsen
+ * @version 31.03.2016
+ */
+public class CcsLoadDriver {
+    private static final Logger logger = LoggerFactory.getLogger(CcsLoadDriver.class.getSimpleName());
+
+    private final FcmServer server;
+    private final FcmNotificationTemplate template;
+    private final int messages;
+    private final int window;
+    private final Histogram ackLatency = new Histogram(3);
+
+    private Handler<AsyncResult<JsonObject>> reportHandler;
+    private long startedAt;
+    private int started;
+    private int outstanding;
+    private long acked;
+    private long failed;
+
+    public CcsLoadDriver(FcmServer server, FcmNotificationTemplate template, int messages, int window) {
+        this.server = server;
+        this.template = template;
+        this.messages = messages;
+        this.window = window;
+    }
+
+    /**
+     * The report holds messages, acked, failed, elapsedMs, messagesPerSecond and ackLatency percentiles in ms.
+     */
+    public synchronized void run(Handler<AsyncResult<JsonObject>> reportHandler) {
+        this.reportHandler = reportHandler;
+        this.startedAt = System.nanoTime();
+
+        pump();
+    }
+
+    private synchronized void pump() {
+        while (outstanding < window && started < messages) {
+            long sentAt = System.nanoTime();
+            outstanding++;
+
+            server.deliverNotification("load-device-" + started++, template,
+                    deliveryResult -> delivered(sentAt, deliveryResult));
+        }
+
+        if (outstanding == 0 && started == messages && reportHandler != null) {
+            Handler<AsyncResult<JsonObject>> handler = reportHandler;
+            reportHandler = null;
+
+            JsonObject report = createReport();
+            logger.info("Load run completed: " + report.encode());
+
+            handler.handle(Future.succeededFuture(report));
+        }
+    }
+
+    private synchronized void delivered(long sentAt, AsyncResult<JsonObject> deliveryResult) {
+        outstanding--;
+
+        if (deliveryResult.succeeded()) {
+            acked++;
+            ackLatency.recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - sentAt));
+        } else {
+            failed++;
+        }
+
+        pump();
+    }
+
+    private JsonObject createReport() {
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+
+        return new JsonObject()
+                .put("messages", messages)
+                .put("acked", acked)
+                .put("failed", failed)
+                .put("elapsedMs", elapsed)
+                .put("messagesPerSecond", elapsed == 0 ? messages : messages * 1000L / elapsed)
+                .put("ackLatency", new JsonObject()
+                        .put("p50", ackLatency.getValueAtPercentile(50.0) / 1000.0)
+                        .put("p90", ackLatency.getValueAtPercentile(90.0) / 1000.0)
+                        .put("p99", ackLatency.getValueAtPercentile(99.0) / 1000.0)
+                        .put("p999", ackLatency.getValueAtPercentile(99.9) / 1000.0)
+                        .put("max", ackLatency.getMaxValue() / 1000.0));
+    }
+}
@@ -0,0 +1,452 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Anders Mikkelsen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.nannoq.tools.fcm;
+
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+import javax.net.ServerSocketFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class is a local stand-in for the CCS XMPP endpoint. It accepts SASL PLAIN logins with any credentials, binds
+ * a session, and answers downstream google:mobile:data messages with ACKs or NACKs after a configurable latency.
+ * Delivery receipts are sent when requested, and connections are drained with CONNECTION_DRAINING after a
+ * configurable amount of messages. Sockets are plain unless a TLS server socket factory is given.
+ *
+ * @author Anders Mikkelsen
+ * @version 31.03.2016
+ */
+public class FakeCcsServer {
+    private static final Logger logger = LoggerFactory.getLogger(FakeCcsServer.class.getSimpleName());
+
+    private static final String STREAM_NAMESPACE = "http://etherx.jabber.org/streams";
+    private static final String SASL_NAMESPACE = "urn:ietf:params:xml:ns:xmpp-sasl";
+    private static final String BIND_NAMESPACE = "urn:ietf:params:xml:ns:xmpp-bind";
+    private static final String SESSION_NAMESPACE = "urn:ietf:params:xml:ns:xmpp-session";
+    private static final String GCM_NAMESPACE = "google:mobile:data";
+    private static final String CCS_DOMAIN = "gcm.googleapis.com";
+
+    private final ServerSocketFactory serverSocketFactory;
+    private final XMLInputFactory inputFactory;
+    private final List<ClientConnection> clients = new CopyOnWriteArrayList<>();
+    private ServerSocket serverSocket;
+    private ExecutorService connectionExecutor;
+    private ScheduledExecutorService responseScheduler;
+
+    private volatile long ackLatency = 1L;
+    private volatile long ackLatencyJitter = 0L;
+    private volatile double nackRatio = 0.0;
+    private volatile double lossRatio = 0.0;
+    private volatile List<String> nackErrorCodes = Arrays.asList("INVALID_JSON");
+    private volatile double receiptRatio = 0.0;
+    private volatile long receiptLatency = 10L;
+    private volatile long drainAfterMessages = 0L;
+
+    private final LongAdder received = new LongAdder();
+    private final LongAdder acks = new LongAdder();
+    private final LongAdder nacks = new LongAdder();
+    private final LongAdder lost = new LongAdder();
+    private final LongAdder receipts = new LongAdder();
+    private final LongAdder drains = new LongAdder();
+    private final AtomicInteger maxPending = new AtomicInteger();
+    private final AtomicInteger connectionCount = new AtomicInteger();
+
+    public FakeCcsServer() {
+        this(ServerSocketFactory.getDefault());
+    }
+
+    public FakeCcsServer(ServerSocketFactory serverSocketFactory) {
+        this.serverSocketFactory = serverSocketFactory;
+        this.inputFactory = XMLInputFactory.newFactory();
+        this.inputFactory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        this.inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    }
+
+    public FakeCcsServer withAckLatency(long ackLatency, long ackLatencyJitter) {
+        this.ackLatency = ackLatency;
+        this.ackLatencyJitter = ackLatencyJitter;
+
+        return this;
+    }
+
+    public FakeCcsServer withNackRatio(double nackRatio, String... errorCodes) {
+        this.nackRatio = nackRatio;
+        if (errorCodes.length > 0) this.nackErrorCodes = Arrays.asList(errorCodes);
+
+        return this;
+    }
+
+    /**
+     * Messages are lost at the given ratio, leaving them without an ACK or NACK.
+     */
+    public FakeCcsServer withLossRatio(double lossRatio) {
+        this.lossRatio = lossRatio;
+
+        return this;
+    }
+
+    public FakeCcsServer withReceiptRatio(double receiptRatio, long receiptLatency) {
+        this.receiptRatio = receiptRatio;
+        this.receiptLatency = receiptLatency;
+
+        return this;
+    }
+
+    public FakeCcsServer withDrainAfter(long drainAfterMessages) {
+        this.drainAfterMessages = drainAfterMessages;
+
+        return this;
+    }
+
+    public int start() throws IOException {
+        serverSocket = serverSocketFactory.createServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        connectionExecutor = Executors.newCachedThreadPool();
+        responseScheduler = Executors.newScheduledThreadPool(2);
+        connectionExecutor.execute(this::accept);
+
+        logger.info("Fake CCS listening on port: " + serverSocket.getLocalPort());
+
+        return serverSocket.getLocalPort();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public void stop() {
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            logger.error("Could not close server socket!", e);
+        }
+
+        clients.forEach(ClientConnection::close);
+        responseScheduler.shutdownNow();
+        connectionExecutor.shutdownNow();
+    }
+
+    /**
+     * Sends CONNECTION_DRAINING on every open connection.
+     */
+    public void drainAll() {
+        clients.forEach(ClientConnection::drain);
+    }
+
+    /**
+     * Sends an upstream message from a device to the first open connection.
+     */
+    public void sendUpstream(String from, String category, JsonObject data) {
+        clients.stream().findFirst().ifPresent(client -> client.write(new JsonObject()
+                .put("from", from)
+                .put("category", category)
+                .put("message_id", UUID.randomUUID().toString())
+                .put("data", data)));
+    }
+
+    public JsonObject getStats() {
+        return new JsonObject()
+                .put("connections", connectionCount.get())
+                .put("received", received.sum())
+                .put("acks", acks.sum())
+                .put("nacks", nacks.sum())
+                .put("lost", lost.sum())
+                .put("receipts", receipts.sum())
+                .put("drains", drains.sum())
+                .put("maxPendingPerConnection", maxPending.get());
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+
+                ClientConnection client = new ClientConnection(socket);
+                clients.add(client);
+                connectionCount.incrementAndGet();
+                connectionExecutor.execute(client);
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) logger.error("Could not accept connection!", e);
+            }
+        }
+    }
+
+    private static String escape(String text) {
+        StringBuilder escaped = new StringBuilder(text.length() + 16);
+
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+
+            switch (c) {
+                case '&':
+                    escaped.append("&amp;");
+                    break;
+                case '<':
+                    escaped.append("&lt;");
+                    break;
+                case '>':
+                    escaped.append("&gt;");
+                    break;
+                default:
+                    escaped.append(c);
+                    break;
+            }
+        }
+
+        return escaped.toString();
+    }
+
+    private class ClientConnection implements Runnable {
+        private final Socket socket;
+        private final Writer writer;
+        private final AtomicInteger pending = new AtomicInteger();
+        private long messages;
+        private boolean authenticated;
+        private volatile boolean draining;
+
+        private ClientConnection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public void run() {
+            try {
+                XMLStreamReader reader = inputFactory.createXMLStreamReader(socket.getInputStream(), "UTF-8");
+
+                while (reader.hasNext()) {
+                    int event = reader.next();
+
+                    if (event == XMLStreamConstants.START_ELEMENT) {
+                        String name = reader.getLocalName();
+
+                        if ("stream".equals(name) && STREAM_NAMESPACE.equals(reader.getNamespaceURI())) {
+                            openStream();
+                        } else if ("auth".equals(name) && SASL_NAMESPACE.equals(reader.getNamespaceURI())) {
+                            reader.getElementText();
+                            authenticated = true;
+
+                            write("<success xmlns='" + SASL_NAMESPACE + "'/>");
+                        } else if ("iq".equals(name)) {
+                            handleIq(reader);
+                        } else if ("message".equals(name)) {
+                            handleMessage(reader);
+                        }
+                    } else if (event == XMLStreamConstants.END_ELEMENT && "stream".equals(reader.getLocalName())) {
+                        write("</stream:stream>");
+
+                        break;
+                    }
+                }
+            } catch (XMLStreamException | IOException e) {
+                if (!socket.isClosed()) logger.debug("Client connection ended: " + e.getMessage());
+            } finally {
+                close();
+            }
+        }
+
+        private void openStream() throws IOException {
+            String features = authenticated ?
+                    "<bind xmlns='" + BIND_NAMESPACE + "'/><session xmlns='" + SESSION_NAMESPACE + "'/>" :
+                    "<mechanisms xmlns='" + SASL_NAMESPACE + "'><mechanism>PLAIN</mechanism></mechanisms>";
+
+            write("<stream:stream xmlns='jabber:client' xmlns:stream='" + STREAM_NAMESPACE + "' id='" +
+                    UUID.randomUUID() + "' from='" + CCS_DOMAIN + "' version='1.0'>" +
+                    "<stream:features>" + features + "</stream:features>");
+        }
+
+        private void handleIq(XMLStreamReader reader) throws XMLStreamException, IOException {
+            String id = reader.getAttributeValue(null, "id");
+            String query = null;
+
+            while (reader.hasNext()) {
+                int event = reader.next();
+
+                if (event == XMLStreamConstants.START_ELEMENT && query == null) {
+                    query = reader.getLocalName();
+                } else if (event == XMLStreamConstants.END_ELEMENT && "iq".equals(reader.getLocalName())) {
+                    break;
+                }
+            }
+
+            if ("bind".equals(query)) {
+                write("<iq type='result' id='" + id + "'><bind xmlns='" + BIND_NAMESPACE + "'><jid>" +
+                        UUID.randomUUID() + "@" + CCS_DOMAIN + "/fake</jid></bind></iq>");
+            } else {
+                write("<iq type='result' id='" + id + "'/>");
+            }
+        }
+
+        private void handleMessage(XMLStreamReader reader) throws XMLStreamException {
+            String json = null;
+
+            while (reader.hasNext()) {
+                int event = reader.next();
+
+                if (event == XMLStreamConstants.START_ELEMENT && "gcm".equals(reader.getLocalName())) {
+                    json = reader.getElementText();
+                } else if (event == XMLStreamConstants.END_ELEMENT && "message".equals(reader.getLocalName())) {
+                    break;
+                }
+            }
+
+            if (json != null) handleDownstream(new JsonObject(json));
+        }
+
+        private void handleDownstream(JsonObject message) {
+            // acks for receipts and upstream messages need no answer
+            if (message.getString("message_type") != null) return;
+
+            received.increment();
+            messages++;
+
+            int inFlight = pending.incrementAndGet();
+            maxPending.accumulateAndGet(inFlight, Math::max);
+
+            long latency = ackLatency + (ackLatencyJitter > 0 ?
+                    ThreadLocalRandom.current().nextLong(ackLatencyJitter + 1) : 0L);
+
+            responseScheduler.schedule(() -> answer(message), latency, TimeUnit.MILLISECONDS);
+
+            if (drainAfterMessages > 0 && messages == drainAfterMessages) drain();
+        }
+
+        private void answer(JsonObject message) {
+            String messageId = message.getString("message_id");
+            String to = message.getString("to");
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+
+            if (lossRatio > 0.0 && random.nextDouble() < lossRatio) {
+                lost.increment();
+
+                if (pending.decrementAndGet() == 0 && draining) close();
+
+                return;
+            }
+            JsonObject answer = new JsonObject()
+                    .put("from", to)
+                    .put("message_id", messageId);
+
+            if (nackRatio > 0.0 && random.nextDouble() < nackRatio) {
+                nacks.increment();
+
+                answer.put("message_type", "nack")
+                        .put("error", nackErrorCodes.get(random.nextInt(nackErrorCodes.size())))
+                        .put("error_description", "Fake CCS error");
+            } else {
+                acks.increment();
+
+                answer.put("message_type", "ack");
+
+                if (message.getBoolean("delivery_receipt_requested", false) && random.nextDouble() < receiptRatio) {
+                    responseScheduler.schedule(() -> sendReceipt(messageId, to, message.getString(
+                            "restricted_package_name")), receiptLatency, TimeUnit.MILLISECONDS);
+                }
+            }
+
+            write(answer);
+
+            if (pending.decrementAndGet() == 0 && draining) close();
+        }
+
+        private void sendReceipt(String messageId, String to, String category) {
+            receipts.increment();
+
+            write(new JsonObject()
+                    .put("message_type", "receipt")
+                    .put("message_id", "dr2:" + messageId)
+                    .put("from", CCS_DOMAIN)
+                    .put("category", category)
+                    .put("data", new JsonObject()
+                            .put("message_status", "MESSAGE_SENT_TO_DEVICE")
+                            .put("original_message_id", messageId)
+                            .put("device_registration_id", to)
+                            .put("message_sent_timestamp", String.valueOf(System.currentTimeMillis()))));
+        }
+
+        private void drain() {
+            if (draining) return;
+
+            draining = true;
+            drains.increment();
+
+            write(new JsonObject()
+                    .put("message_type", "control")
+                    .put("control_type", "CONNECTION_DRAINING"));
+
+            if (pending.get() == 0) responseScheduler.schedule(this::close, receiptLatency, TimeUnit.MILLISECONDS);
+        }
+
+        private void write(JsonObject json) {
+            try {
+                write("<message><gcm xmlns='" + GCM_NAMESPACE + "'>" + escape(json.encode()) + "</gcm></message>");
+            } catch (IOException e) {
+                logger.debug("Could not write to client: " + e.getMessage());
+            }
+        }
+
+        private void write(String xml) throws IOException {
+            synchronized (writer) {
+                writer.write(xml);
+                writer.flush();
+            }
+        }
+
+        private void close() {
+            clients.remove(this);
+
+            try {
+                socket.close();
+            } catch (IOException e) {
+                logger.debug("Could not close client socket: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,491 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Anders Mikkelsen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.nannoq.tools.fcm;
+
+import com.nannoq.tools.fcm.server.FcmNackException;
+import com.nannoq.tools.fcm.server.FcmServer;
+import com.nannoq.tools.fcm.server.messageutils.DefaultFcmNotificationImpl;
+import com.nannoq.tools.fcm.server.messageutils.FcmNotificationTemplate;
+import com.nannoq.tools.fcm.server.services.DefaultNotificationsServiceImpl;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+import io.vertx.core.streams.ReadStream;
+import io.vertx.ext.unit.Async;
+import io.vertx.ext.unit.TestContext;
+import io.vertx.ext.unit.junit.RunTestOnContext;
+import io.vertx.ext.unit.junit.Timeout;
+import io.vertx.ext.unit.junit.VertxUnitRunner;
+import io.vertx.redis.RedisClient;
+import io.vertx.redis.RedisOptions;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import redis.embedded.RedisServer;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs FcmServer against the fake CCS server. Size the run with the fcm.load.messages, fcm.load.window and
+ * fcm.load.connections system properties.
+ *
+ * @author Anders Mikkelsen
+ * @version 31.03.2016
+ */
+@RunWith(VertxUnitRunner.class)
+public class FcmLoadIT {
+    private static final Logger logger = LoggerFactory.getLogger(FcmLoadIT.class.getSimpleName());
+
+    // CCS allows up to 100 unacknowledged downstream messages per connection
+    private static final int MAX_PENDING_PER_CONNECTION = 100;
+
+    private static final String OUTBOX_HASH = "MESSAGE_QUEUE";
+
+    // a burst of 5 and 50 messages a second per device, only ever reached by messages to the same device
+    private static final int DEVICE_RATE_BURST = 5;
+    private static final long DEVICE_RATE_PER_HOUR = 180000L;
+
+    private final int messages = Integer.getInteger("fcm.load.messages", 10000);
+    private final int window = Integer.getInteger("fcm.load.window", 1000);
+    private final int connections = Integer.getInteger("fcm.load.connections", 2);
+
+    private RedisServer redisServer;
+    private FakeCcsServer fakeCcsServer;
+    private FcmServer fcmServer;
+    private int fcmPort;
+
+    @Rule
+    public RunTestOnContext rule = new RunTestOnContext();
+
+    @Rule
+    public Timeout timeout = Timeout.seconds(300);
+
+    @Before
+    public void setUp(TestContext testContext) throws Exception {
+        redisServer = new RedisServer(Integer.parseInt(System.getProperty("redis.port")));
+        redisServer.start();
+
+        fakeCcsServer = new FakeCcsServer().withAckLatency(2L, 8L);
+        fcmPort = fakeCcsServer.start();
+
+        deployFcmServer(new JsonObject(), testContext.asyncAssertSuccess());
+    }
+
+    private void deployFcmServer(JsonObject config, Handler<AsyncResult<String>> deployHandler) {
+        fcmServer = FcmCreator.createFcm(new DefaultDataMessageHandler());
+
+        rule.vertx().deployVerticle(fcmServer, new DeploymentOptions()
+                .setConfig(new JsonObject()
+                        .put("basePackageNameFcm", "com.nannoq.load")
+                        .put("gcmSenderId", "load")
+                        .put("gcmApiKey", "load")
+                        .put("fcmEndpoint", "localhost")
+                        .put("fcmPort", fcmPort)
+                        .put("fcmSsl", false)
+                        .put("fcmConnectionPoolSize", connections)
+                        .put("fcmDeviceRateBurst", DEVICE_RATE_BURST)
+                        .put("fcmDeviceRatePerHour", DEVICE_RATE_PER_HOUR)
+                        .put("redis_host", System.getProperty("redis.endpoint"))
+                        .put("redis_port", Integer.parseInt(System.getProperty("redis.port")))
+                        .mergeIn(config)),
+                deployHandler);
+    }
+
+    private FcmNotificationTemplate createTemplate() {
+        return fcmServer.createNotificationTemplate(createNotification());
+    }
+
+    private DefaultFcmNotificationImpl createNotification() {
+        return new DefaultFcmNotificationImpl(new JsonObject()
+                .put("packageNameExtension", "devApp")
+                .put("notification", new JsonObject()
+                        .put("title", "Load test")
+                        .put("body", "Tom & Jerry's <b>new</b> episode is out!")));
+    }
+
+    @Test
+    public void sustainsLoad(TestContext testContext) {
+        Async async = testContext.async();
+
+        rule.vertx().runOnContext(v -> new CcsLoadDriver(fcmServer, createTemplate(), messages, window).run(
+                testContext.asyncAssertSuccess(report -> {
+                    JsonObject stats = fakeCcsServer.getStats();
+                    logger.info("Fake CCS stats: " + stats.encode());
+
+                    testContext.assertEquals((long) messages, report.getLong("acked"));
+                    testContext.assertEquals(0L, report.getLong("failed"));
+                    testContext.assertTrue(stats.getInteger("maxPendingPerConnection") <= MAX_PENDING_PER_CONNECTION);
+
+                    async.complete();
+                })));
+    }
+
+    @Test
+    public void completesNackedAndDrained(TestContext testContext) {
+        fakeCcsServer.withNackRatio(0.05, "INVALID_JSON").withDrainAfter(messages / 4);
+
+        Async async = testContext.async();
+
+        rule.vertx().runOnContext(v -> new CcsLoadDriver(fcmServer, createTemplate(), messages, window).run(
+                testContext.asyncAssertSuccess(report -> {
+                    JsonObject stats = fakeCcsServer.getStats();
+                    logger.info("Fake CCS stats: " + stats.encode());
+
+                    testContext.assertEquals((long) messages, report.getLong("acked") + report.getLong("failed"));
+                    // a message resent after a drain can be nacked on both connections
+                    testContext.assertTrue(report.getLong("failed") <= stats.getLong("nacks"));
+                    testContext.assertTrue(stats.getLong("drains") > 0L);
+
+                    async.complete();
+                })));
+    }
+
+    @Test
+    public void spacesMessagesToOneDevice(TestContext testContext) {
+        int deviceMessages = 25;
+        long minimumDuration = (deviceMessages - DEVICE_RATE_BURST - 1) * 3600000L / DEVICE_RATE_PER_HOUR;
+        FcmNotificationTemplate template = createTemplate();
+        Async async = testContext.async(deviceMessages);
+        long start = System.currentTimeMillis();
+
+        rule.vertx().runOnContext(v -> {
+            for (int i = 0; i < deviceMessages; i++) {
+                fcmServer.deliverNotification("load-device-hot", template, testContext.asyncAssertSuccess(ack -> {
+                    if (async.count() == 1) {
+                        testContext.assertTrue(System.currentTimeMillis() - start >= minimumDuration);
+                    }
+
+                    async.countDown();
+                }));
+            }
+        });
+    }
+
+    @Test
+    public void sendsHeldMessagesOnceTheDeviceHasTokens(TestContext testContext) {
+        int deviceMessages = 40;
+        Async async = testContext.async(deviceMessages);
+
+        // no token frees up within the max delay for most of the messages, so they are held instead of deferred
+        rule.vertx().undeploy(fcmServer.deploymentID(), testContext.asyncAssertSuccess(undeployed ->
+                deployFcmServer(new JsonObject()
+                        .put("fcmRetryBaseDelayMs", 100L)
+                        .put("fcmRetryMaxDelayMs", 200L), testContext.asyncAssertSuccess(deployed -> {
+                    FcmNotificationTemplate template = createTemplate();
+
+                    for (int i = 0; i < deviceMessages; i++) {
+                        fcmServer.deliverNotification("load-device-held", template,
+                                testContext.asyncAssertSuccess(ack -> {
+                                    if (async.count() == 1) {
+                                        testContext.assertTrue(fcmServer.getMetrics().getLong("rateHeld") > 0L);
+                                    }
+
+                                    async.countDown();
+                                }));
+                    }
+                }))));
+    }
+
+    @Test
+    public void resendsMessagesLeftUnanswered(TestContext testContext) {
+        fakeCcsServer.withLossRatio(0.05);
+
+        int lossMessages = 1000;
+        Async async = testContext.async();
+
+        rule.vertx().undeploy(fcmServer.deploymentID(), testContext.asyncAssertSuccess(undeployed ->
+                deployFcmServer(new JsonObject().put("fcmDeliveryTimeoutMs", 1000L),
+                        testContext.asyncAssertSuccess(deployed -> {
+                            FcmNotificationTemplate template = createTemplate();
+
+                            for (int i = 0; i < lossMessages; i++) {
+                                fcmServer.sendNotification("load-device-" + i, template);
+                            }
+
+                            // every message is ACKed once its lost copies are resent, and the windows are empty again
+                            rule.vertx().setPeriodic(100L, timerId -> {
+                                JsonObject stats = fakeCcsServer.getStats();
+                                boolean windowsEmpty = fcmServer.getFlowControlStats().getJsonArray("connections")
+                                        .stream()
+                                        .allMatch(connection -> ((JsonObject) connection).getInteger("inFlight") == 0);
+
+                                if (stats.getLong("acks") == lossMessages && windowsEmpty) {
+                                    logger.info("Fake CCS stats: " + stats.encode());
+
+                                    testContext.assertTrue(stats.getLong("lost") > 0L);
+                                    rule.vertx().cancelTimer(timerId);
+                                    async.complete();
+                                }
+                            });
+                        }))));
+    }
+
+    @Test
+    public void collapsesWaitingMessagesToOneDevice(TestContext testContext) {
+        int deviceMessages = 25;
+        FcmNotificationTemplate template = fcmServer.createNotificationTemplate(new DefaultFcmNotificationImpl(
+                new JsonObject()
+                        .put("packageNameExtension", "devApp")
+                        .put("collapseKey", "score")
+                        .put("data", new JsonObject().put("score", "1-0"))));
+        Async async = testContext.async(deviceMessages);
+
+        rule.vertx().runOnContext(v -> {
+            for (int i = 0; i < deviceMessages; i++) {
+                fcmServer.deliverNotification("load-device-live", template, testContext.asyncAssertSuccess(ack -> {
+                    if (async.count() == 1) {
+                        JsonObject stats = fakeCcsServer.getStats();
+                        logger.info("Fake CCS stats: " + stats.encode());
+
+                        testContext.assertTrue(stats.getLong("received") < deviceMessages);
+                        testContext.assertTrue(fcmServer.getMetrics().getLong("collapsed") > 0L);
+                    }
+
+                    async.countDown();
+                }));
+            }
+        });
+    }
+
+    @Test
+    public void purgesMessagesRejectedForGood(TestContext testContext) {
+        fakeCcsServer.withNackRatio(0.1, "INVALID_JSON");
+
+        int purgeMessages = 2000;
+        Async async = testContext.async();
+        RedisClient redisClient = RedisClient.create(rule.vertx(), new RedisOptions()
+                .setHost(System.getProperty("redis.endpoint"))
+                .setPort(Integer.parseInt(System.getProperty("redis.port"))));
+
+        rule.vertx().runOnContext(v -> new CcsLoadDriver(fcmServer, createTemplate(), purgeMessages, window).run(
+                testContext.asyncAssertSuccess(report -> {
+                    testContext.assertTrue(report.getLong("failed") > 0L);
+
+                    // purges complete asynchronously after the last answer
+                    rule.vertx().setPeriodic(100L, timerId -> redisClient.hlen(OUTBOX_HASH, lengthResult -> {
+                        if (lengthResult.succeeded() && lengthResult.result() == 0L) {
+                            rule.vertx().cancelTimer(timerId);
+                            redisClient.close(closed -> async.complete());
+                        }
+                    }));
+                })));
+    }
+
+    @Test
+    public void countsCcsOutcomesOfBulkNotifications(TestContext testContext) {
+        fakeCcsServer.withNackRatio(0.1, "INVALID_JSON");
+
+        int bulkRecipients = 2000;
+        JsonArray recipients = new JsonArray();
+        for (int i = 0; i < bulkRecipients; i++) recipients.add("load-device-" + i);
+
+        Async async = testContext.async();
+
+        rule.vertx().runOnContext(v -> new DefaultNotificationsServiceImpl(fcmServer).sendBulkNotification(
+                new JsonObject()
+                        .put("notification", new JsonObject()
+                                .put("packageNameExtension", "devApp")
+                                .put("notification", new JsonObject()
+                                        .put("title", "Bulk test")
+                                        .put("body", "Everyone gets this one.")))
+                        .put("recipients", recipients),
+                testContext.asyncAssertSuccess(result -> {
+                    JsonObject stats = fakeCcsServer.getStats();
+                    logger.info("Bulk result: " + result.encode() + ", fake CCS stats: " + stats.encode());
+
+                    testContext.assertEquals((long) bulkRecipients,
+                            result.getLong("accepted") + result.getLong("failed"));
+                    testContext.assertTrue(result.getLong("failed") > 0L);
+                    testContext.assertEquals(stats.getLong("nacks"), result.getLong("failed"));
+
+                    async.complete();
+                })));
+    }
+
+    @Test
+    public void countsCcsOutcomesOfTopicNotifications(TestContext testContext) {
+        fakeCcsServer.withNackRatio(0.1, "INVALID_JSON");
+
+        int topicMessages = 500;
+        AtomicLong accepted = new AtomicLong();
+        AtomicLong failed = new AtomicLong();
+        Async async = testContext.async(topicMessages);
+
+        rule.vertx().runOnContext(v -> {
+            DefaultNotificationsServiceImpl service = new DefaultNotificationsServiceImpl(fcmServer);
+
+            for (int i = 0; i < topicMessages; i++) {
+                service.sendTopicNotification(new JsonObject()
+                        .put("notification", new JsonObject()
+                                .put("packageNameExtension", "devApp")
+                                .put("notification", new JsonObject()
+                                        .put("title", "Topic test")
+                                        .put("body", "Everyone following the topic gets this one.")))
+                        .put("topic", "news"), sentResult -> {
+                    if (sentResult.succeeded()) {
+                        testContext.assertTrue(sentResult.result());
+                        accepted.incrementAndGet();
+                    } else {
+                        testContext.assertTrue(sentResult.cause() instanceof FcmNackException);
+                        failed.incrementAndGet();
+                    }
+
+                    if (async.count() == 1) {
+                        JsonObject stats = fakeCcsServer.getStats();
+                        logger.info("Topic accepted: " + accepted + ", failed: " + failed +
+                                ", fake CCS stats: " + stats.encode());
+
+                        testContext.assertTrue(failed.get() > 0L);
+                        testContext.assertEquals(stats.getLong("acks"), accepted.get());
+                        testContext.assertEquals(stats.getLong("nacks"), failed.get());
+                    }
+
+                    async.countDown();
+                });
+            }
+        });
+    }
+
+    @Test
+    public void rejectsInvalidNotifications(TestContext testContext) {
+        JsonObject notification = new JsonObject()
+                .put("packageNameExtension", "devApp")
+                .put("notification", new JsonObject().put("title", "Invalid test"));
+        Async async = testContext.async(3);
+
+        rule.vertx().runOnContext(v -> {
+            DefaultNotificationsServiceImpl service = new DefaultNotificationsServiceImpl(fcmServer);
+
+            service.sendTopicNotification(new JsonObject()
+                    .put("notification", notification.copy().putNull("packageNameExtension"))
+                    .put("topic", "news"), testContext.asyncAssertFailure(cause -> {
+                testContext.assertTrue(cause instanceof IllegalArgumentException);
+                async.countDown();
+            }));
+            service.sendUserNotification(new JsonObject()
+                    .put("notification", notification.copy().put("data", "not an object"))
+                    .put("to", "load-device-invalid"), testContext.asyncAssertFailure(cause -> {
+                testContext.assertTrue(cause instanceof IllegalArgumentException);
+                async.countDown();
+            }));
+            service.sendBulkNotification(new JsonObject()
+                    .put("notification", notification)
+                    .put("recipients", new JsonArray().add("load-device-valid").addNull()),
+                    testContext.asyncAssertFailure(cause -> {
+                        testContext.assertTrue(cause instanceof IllegalArgumentException);
+                        async.countDown();
+                    }));
+        });
+    }
+
+    @Test
+    public void streamsOutcomesOfRecipientStream(TestContext testContext) {
+        fakeCcsServer.withNackRatio(0.05, "INVALID_JSON");
+
+        // more recipients than the window of sends in flight, so the fan out has to pause the recipients
+        int streamRecipients = 3000;
+        AtomicLong accepted = new AtomicLong();
+        AtomicLong failed = new AtomicLong();
+        AtomicBoolean outcomesPaused = new AtomicBoolean();
+        AtomicBoolean ended = new AtomicBoolean();
+        Async async = testContext.async();
+
+        rule.vertx().runOnContext(v -> {
+            RecipientStream recipients = new RecipientStream(rule.vertx().getOrCreateContext(), streamRecipients);
+            ReadStream<JsonObject> outcomes = fcmServer.sendNotification(recipients, createNotification());
+
+            outcomes.exceptionHandler(testContext::fail);
+            outcomes.endHandler(end -> {
+                JsonObject stats = fakeCcsServer.getStats();
+                logger.info("Stream outcomes accepted: " + accepted + ", failed: " + failed +
+                        ", fake CCS stats: " + stats.encode());
+
+                testContext.assertFalse(ended.getAndSet(true));
+                testContext.assertEquals((long) streamRecipients, accepted.get() + failed.get());
+                testContext.assertTrue(failed.get() > 0L);
+                testContext.assertEquals(stats.getLong("nacks"), failed.get());
+                testContext.assertTrue(recipients.getPauses() > 0);
+
+                async.complete();
+            });
+            outcomes.handler(outcome -> {
+                testContext.assertFalse(outcomesPaused.get());
+                testContext.assertFalse(ended.get());
+
+                (outcome.getBoolean("accepted") ? accepted : failed).incrementAndGet();
+
+                if (accepted.get() + failed.get() == streamRecipients / 2) {
+                    outcomesPaused.set(true);
+                    outcomes.pause();
+
+                    rule.vertx().setTimer(500L, timerId -> {
+                        outcomesPaused.set(false);
+                        outcomes.resume();
+                    });
+                }
+            });
+        });
+    }
+
+    @Test
+    public void endsOutcomesOfFailedRecipientStream(TestContext testContext) {
+        int streamRecipients = 1000;
+        int failAfter = 200;
+        AtomicLong outcomeCount = new AtomicLong();
+        AtomicBoolean recipientsFailed = new AtomicBoolean();
+        Async async = testContext.async();
+
+        rule.vertx().runOnContext(v -> {
+            RecipientStream recipients = new RecipientStream(rule.vertx().getOrCreateContext(), streamRecipients,
+                    failAfter);
+            ReadStream<JsonObject> outcomes = fcmServer.sendNotification(recipients, createNotification());
+
+            outcomes.exceptionHandler(cause -> recipientsFailed.set(true));
+            outcomes.endHandler(end -> {
+                testContext.assertTrue(recipientsFailed.get());
+                testContext.assertEquals((long) failAfter, outcomeCount.get());
+
+                async.complete();
+            });
+            outcomes.handler(outcome -> outcomeCount.incrementAndGet());
+        });
+    }
+
+    @After
+    public void tearDown(TestContext testContext) {
+        rule.vertx().undeploy(fcmServer.deploymentID(), testContext.asyncAssertSuccess(v -> {
+            fakeCcsServer.stop();
+            redisServer.stop();
+        }));
+    }
+}
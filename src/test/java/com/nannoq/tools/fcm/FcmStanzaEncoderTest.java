@@ -0,0 +1,106 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Anders Mikkelsen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.nannoq.tools.fcm;
+
+import com.nannoq.tools.fcm.server.messageutils.FcmStanzaEncoder;
+import org.jivesoftware.smack.util.StringUtils;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import static com.nannoq.tools.fcm.server.XMPPPacketListener.GCM_ELEMENT_NAME;
+import static com.nannoq.tools.fcm.server.XMPPPacketListener.GCM_NAMESPACE;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Pins the single pass stanza encoder to the String.format and escapeForXML path it replaced. The only difference is
+ * a three digit decimal character reference like "&#235;", which escapeForXML passes through while repeating the text
+ * since the previous escape, and which the encoder escapes like any other ampersand.
+ *
+ * @author Anders Mikkelsen
+ * @version 31.03.2016
+ */
+public class FcmStanzaEncoderTest {
+    private static final String[] TABLE = {
+            "",
+            "{}",
+            "plain",
+            "<>&\"'",
+            "{\"to\":\"dev\",\"notification\":{\"body\":\"Tom & Jerry's <b>new</b> episode is out!\"}}",
+            "&amp; &lt; &gt; &quot; &apos;",
+            "&#2350; &#x20AC; &#; &#12 & &#235",
+            "\u00e6\u00f8\u00e5 \u20ac \ud83d\ude00",
+            "\\\"escaped\\\" \\u003c"
+    };
+
+    private static final Pattern CHARACTER_REFERENCE = Pattern.compile("&#[0-9]{3};");
+
+    // weighted towards the characters that are escaped or could start an entity
+    private static final String ALPHABET = "<>&\"'#;x0123456789abcAZ {}:,\\\u00e6\u20ac";
+
+    @Test
+    public void encodesTableLikeEscapeForXml() {
+        for (String json : TABLE) {
+            assertEquals(json, formatted(json), FcmStanzaEncoder.encode(json));
+        }
+    }
+
+    @Test
+    public void encodesRandomJsonLikeEscapeForXml() {
+        Random random = new Random(31032016L);
+
+        for (int i = 0; i < 10000; i++) {
+            StringBuilder json = new StringBuilder();
+            int length = random.nextInt(64);
+
+            for (int j = 0; j < length; j++) {
+                json.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+            }
+
+            if (CHARACTER_REFERENCE.matcher(json).find()) continue;
+
+            assertEquals(json.toString(), formatted(json.toString()), FcmStanzaEncoder.encode(json.toString()));
+        }
+    }
+
+    @Test
+    public void escapesDecimalCharacterReferences() {
+        String json = "{\"body\":\"<b>&#235;</b>\"}";
+
+        assertEquals(envelope("{&quot;body&quot;:&quot;&lt;b&gt;&amp;#235;&lt;/b&gt;&quot;}"),
+                FcmStanzaEncoder.encode(json));
+    }
+
+    private static String formatted(String json) {
+        return envelope(StringUtils.escapeForXML(json));
+    }
+
+    private static String envelope(String escapedJson) {
+        return String.format("<%s xmlns=\"%s\">%s</%s>",
+                GCM_ELEMENT_NAME, GCM_NAMESPACE, escapedJson, GCM_ELEMENT_NAME);
+    }
+}
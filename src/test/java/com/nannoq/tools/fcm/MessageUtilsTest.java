@@ -0,0 +1,80 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Anders Mikkelsen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.nannoq.tools.fcm;
+
+import com.nannoq.tools.fcm.server.messageutils.MessageUtils;
+import io.vertx.core.json.JsonObject;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Pins the wire json of encodeJsonMessage to the message createJsonMessage builds from the same values.
+ *
+ * @author Anders Mikkelsen
+ * @version 31.03.2016
+ */
+public class MessageUtilsTest {
+    private static final String[][] TABLE = {
+            {"dev-registration-id", "REGISTER_DEVICE", "REGISTER_DEVICE", "com.nannoq.app"},
+            {"dev-registration-id", "UPDATE_ID", null, "com.nannoq.app"},
+            {null, "REGISTER_DEVICE", "REGISTER_DEVICE", null},
+            {"dev \"quoted\" \\ id\n", "Tom & Jerry's <b>new</b>", "key \u00e6\u20ac", "com.nannoq.\u00f8"}
+    };
+
+    @Test
+    public void encodesLikeCreateJsonMessage() {
+        for (String[] values : TABLE) {
+            for (JsonObject payload : new JsonObject[]{null, new JsonObject(), createPayload()}) {
+                JsonObject expected = MessageUtils.createJsonMessage(values[0], values[1],
+                        payload == null ? null : payload.copy(), values[2], values[3]);
+                String messageId = expected.getString("message_id");
+
+                assertEquals(expected, new JsonObject(MessageUtils.encodeJsonMessage(values[0], values[1], messageId,
+                        payload == null ? null : payload.copy(), values[2], values[3])));
+            }
+        }
+    }
+
+    @Test
+    public void copiesPayloadIntoMessage() {
+        JsonObject payload = createPayload();
+        JsonObject message = MessageUtils.createJsonMessage("dev-registration-id", "UPDATE_ID", payload, null,
+                "com.nannoq.app");
+
+        payload.put("changed", true);
+
+        assertFalse(message.getJsonObject("data").containsKey("changed"));
+    }
+
+    private static JsonObject createPayload() {
+        return new JsonObject()
+                .put("uniqueId", "user-1")
+                .put("count", 3)
+                .put("nested", new JsonObject().put("text", "<escaped & \"quoted\">"));
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Anders Mikkelsen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.nannoq.tools.fcm;
+
+import io.vertx.core.Context;
+import io.vertx.core.Handler;
+import io.vertx.core.streams.ReadStream;
+
+/**
+ * This class emits a fixed amount of device recipients on the context that created it, honouring pause and resume.
+ * It fails instead of ending when told to fail after a given amount of recipients.
+ *
+ * @author Anders Mikkelsen
+ * @version 31.03.2016
+ */
+public class RecipientStream implements ReadStream<String> {
+    private final Context context;
+    private final int recipients;
+    private final int failAfter;
+
+    private Handler<String> handler;
+    private Handler<Void> endHandler;
+    private Handler<Throwable> exceptionHandler;
+
+    private int emitted;
+    private int pauses;
+    private boolean paused;
+    private boolean done;
+
+    public RecipientStream(Context context, int recipients) {
+        this(context, recipients, -1);
+    }
+
+    public RecipientStream(Context context, int recipients, int failAfter) {
+        this.context = context;
+        this.recipients = recipients;
+        this.failAfter = failAfter;
+    }
+
+    @Override
+    public synchronized ReadStream<String> exceptionHandler(Handler<Throwable> handler) {
+        exceptionHandler = handler;
+
+        return this;
+    }
+
+    @Override
+    public synchronized ReadStream<String> handler(Handler<String> handler) {
+        this.handler = handler;
+        context.runOnContext(v -> emit());
+
+        return this;
+    }
+
+    @Override
+    public synchronized ReadStream<String> pause() {
+        if (!paused) pauses++;
+        paused = true;
+
+        return this;
+    }
+
+    @Override
+    public synchronized ReadStream<String> resume() {
+        paused = false;
+        context.runOnContext(v -> emit());
+
+        return this;
+    }
+
+    @Override
+    public synchronized ReadStream<String> endHandler(Handler<Void> handler) {
+        endHandler = handler;
+
+        return this;
+    }
+
+    public synchronized int getEmitted() {
+        return emitted;
+    }
+
+    public synchronized int getPauses() {
+        return pauses;
+    }
+
+    private synchronized void emit() {
+        while (!done && !paused && handler != null && emitted < recipients) {
+            if (emitted == failAfter) {
+                done = true;
+
+                if (exceptionHandler != null) exceptionHandler.handle(new IllegalStateException("Recipients failed!"));
+            } else {
+                handler.handle("load-device-" + emitted++);
+            }
+        }
+
+        if (!done && emitted == recipients) {
+            done = true;
+
+            if (endHandler != null) endHandler.handle(null);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Anders Mikkelsen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.nannoq.tools.fcm;
+
+import com.nannoq.tools.fcm.server.FcmServer;
+import com.nannoq.tools.fcm.server.messageutils.DefaultFcmNotificationImpl;
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.unit.Async;
+import io.vertx.ext.unit.TestContext;
+import io.vertx.ext.unit.junit.RunTestOnContext;
+import io.vertx.ext.unit.junit.Timeout;
+import io.vertx.ext.unit.junit.VertxUnitRunner;
+import io.vertx.redis.RedisClient;
+import io.vertx.redis.RedisOptions;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import redis.embedded.RedisServer;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Runs FcmServer in the stream outbox mode against the fake CCS server. The embedded redis is too old for streams, so
+ * the run needs a redis 5 or later server binary in the redis.stream.executable system property and is skipped
+ * without one.
+ *
+ * @author Anders Mikkelsen
+ * @version 31.03.2016
+ */
+@RunWith(VertxUnitRunner.class)
+public class StreamOutboxIT {
+    private static final String NODE_ID = "stream-it";
+    private static final String DEAD_NODE_ID = "stream-it-dead";
+    private static final String STREAM_PREFIX = "MESSAGE_STREAM:";
+    private static final String NODES_KEY = "MESSAGE_STREAM_NODES";
+    private static final String ORPHANS_KEY = "MESSAGE_STREAM_ORPHANS";
+
+    private RedisServer redisServer;
+    private RedisClient redisClient;
+    private FakeCcsServer fakeCcsServer;
+    private FcmServer fcmServer;
+
+    @Rule
+    public RunTestOnContext rule = new RunTestOnContext();
+
+    @Rule
+    public Timeout timeout = Timeout.seconds(120);
+
+    @Before
+    public void setUp(TestContext testContext) throws Exception {
+        String executable = System.getProperty("redis.stream.executable");
+        Assume.assumeTrue("No redis 5 server binary given", executable != null && new File(executable).canExecute());
+
+        int redisPort = Integer.parseInt(System.getProperty("redis.port"));
+        redisServer = new RedisServer(new File(executable), redisPort);
+        redisServer.start();
+        redisClient = RedisClient.create(rule.vertx(), new RedisOptions()
+                .setHost(System.getProperty("redis.endpoint"))
+                .setPort(redisPort));
+
+        fakeCcsServer = new FakeCcsServer().withAckLatency(2L, 8L);
+        fcmServer = FcmCreator.createFcm(new DefaultDataMessageHandler());
+
+        rule.vertx().deployVerticle(fcmServer, new DeploymentOptions()
+                .setConfig(new JsonObject()
+                        .put("basePackageNameFcm", "com.nannoq.stream")
+                        .put("gcmSenderId", "stream")
+                        .put("gcmApiKey", "stream")
+                        .put("fcmEndpoint", "localhost")
+                        .put("fcmPort", fakeCcsServer.start())
+                        .put("fcmSsl", false)
+                        .put("fcmOutboxMode", "stream")
+                        .put("fcmOutboxNodeId", NODE_ID)
+                        .put("fcmOutboxRecoveryIntervalMs", 500L)
+                        .put("redis_host", System.getProperty("redis.endpoint"))
+                        .put("redis_port", redisPort)),
+                testContext.asyncAssertSuccess());
+    }
+
+    @Test
+    public void removesAcknowledgedMessagesFromStream(TestContext testContext) {
+        int messages = 2000;
+        Async async = testContext.async();
+
+        rule.vertx().runOnContext(v -> new CcsLoadDriver(fcmServer, fcmServer.createNotificationTemplate(
+                new DefaultFcmNotificationImpl(new JsonObject()
+                        .put("packageNameExtension", "devApp")
+                        .put("notification", new JsonObject().put("title", "Stream test")))), messages, 200).run(
+                testContext.asyncAssertSuccess(report -> {
+                    testContext.assertEquals((long) messages, report.getLong("acked"));
+
+                    redisClient.eval("return redis.call('XLEN', KEYS[1])",
+                            Collections.singletonList(STREAM_PREFIX + NODE_ID), Collections.emptyList(),
+                            testContext.asyncAssertSuccess(length -> {
+                                testContext.assertEquals(0L, length.getLong(0));
+
+                                async.complete();
+                            }));
+                })));
+    }
+
+    @Test
+    public void recoversStreamOfDeadNode(TestContext testContext) {
+        int messages = 50;
+        Async async = testContext.async();
+        StringBuilder script = new StringBuilder("redis.call('SADD', KEYS[2], ARGV[1]) ");
+
+        for (int i = 0; i < messages; i++) {
+            script.append("redis.call('XADD', KEYS[1], '*', 'message_id', 'dead-").append(i)
+                    .append("', 'json', '{\"to\":\"dead-device-").append(i)
+                    .append("\",\"message_id\":\"dead-").append(i)
+                    .append("\",\"data\":{\"recovered\":true}}', 'enqueued', ARGV[2]) ");
+        }
+
+        script.append("return {1}");
+
+        redisClient.eval(script.toString(), Arrays.asList(STREAM_PREFIX + DEAD_NODE_ID, NODES_KEY),
+                Arrays.asList(DEAD_NODE_ID, String.valueOf(System.currentTimeMillis())),
+                testContext.asyncAssertSuccess(seeded -> rule.vertx().setPeriodic(250L, timerId -> {
+                    if (fakeCcsServer.getStats().getLong("acks") >= messages) {
+                        rule.vertx().cancelTimer(timerId);
+
+                        rule.vertx().setTimer(1000L, delay -> redisClient.scard(ORPHANS_KEY,
+                                testContext.asyncAssertSuccess(orphans -> {
+                                    testContext.assertEquals(0L, orphans);
+
+                                    async.complete();
+                                })));
+                    }
+                })));
+    }
+
+    @After
+    public void tearDown(TestContext testContext) {
+        if (fcmServer == null) return;
+
+        rule.vertx().undeploy(fcmServer.deploymentID(), testContext.asyncAssertSuccess(v -> {
+            redisClient.close(closed -> {});
+            fakeCcsServer.stop();
+            redisServer.stop();
+        }));
+    }
+}